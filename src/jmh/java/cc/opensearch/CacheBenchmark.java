@@ -0,0 +1,111 @@
+package cc.opensearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Looking up responses the way {@link Searcher} does: in the memory tier of the {@link QueryCache}, in the cache store and not at all. Both
+ * cache stores are measured, each in its own temporary directory.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+    private static final String[] TOPICS = {"strategy games", "cocktails with rum", "weather in berlin", "vegan pasta recipes", "books about space",
+            "jokes about cats", "nba scores", "movies with tom hanks"};
+
+    /** how many responses are cached */
+    private static final int ENTRIES = 1000;
+
+    @Param({"log", "jsondatabase"})
+    private String store;
+
+    private Path directory;
+    private CacheStore cacheStore;
+
+    /** keeps all entries in memory */
+    private QueryCache memoryCache;
+
+    /** keeps nothing in memory, every lookup goes to the store */
+    private QueryCache storeCache;
+
+    private String cachedQuery;
+    private String uncachedQuery;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("open-search-benchmark");
+        if ("jsondatabase".equals(store)) {
+            cacheStore = new JsonDatabaseCacheStore(directory.toString(), Map.of(Searcher.RESPONSES_COLLECTION, "_id"));
+        } else {
+            cacheStore = new MappedLogCacheStore(directory.toString(), 512L * 1024 * 1024, 10);
+        }
+        memoryCache = new QueryCache(cacheStore, Searcher.RESPONSES_COLLECTION, ENTRIES, 0.85);
+        storeCache = new QueryCache(cacheStore, Searcher.RESPONSES_COLLECTION, 0, 0.85);
+
+        JsonObject response = Fixtures.gamesResponse(1);
+        long expires = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        for (int i = 0; i < ENTRIES; i++) {
+            JsonObject cachedResponse = JsonObject.tryParse(response.toString());
+            cachedResponse.put("expires", expires);
+            memoryCache.put(query(i), cachedResponse);
+        }
+        cachedQuery = query(ENTRIES / 2);
+        uncachedQuery = "what is the capital of " + ENTRIES;
+    }
+
+    private static String query(int i) {
+        return TOPICS[i % TOPICS.length] + " " + i;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cacheStore.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public JsonObject memoryHit() {
+        return memoryCache.get(cachedQuery);
+    }
+
+    @Benchmark
+    public JsonObject storeHit() {
+        return storeCache.get(cachedQuery);
+    }
+
+    /**
+     * Misses the memory and the store and compares the query to all queries in memory.
+     */
+    @Benchmark
+    public JsonObject miss() {
+        return memoryCache.get(uncachedQuery);
+    }
+}
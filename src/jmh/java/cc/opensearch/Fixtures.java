@@ -0,0 +1,47 @@
+package cc.opensearch;
+
+import ws.palladian.helper.io.FileHelper;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.InputStream;
+
+/**
+ * Recorded API and LLM responses for the benchmarks, so they run offline and measure the same data every time.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+final class Fixtures {
+    /** the recorded response is from this API */
+    static final String SOURCE = "https://api.gamebrain.co/games/search";
+
+    private Fixtures() {
+    }
+
+    static String read(String name) {
+        InputStream inputStream = Fixtures.class.getClassLoader().getResourceAsStream("fixtures/" + name);
+        if (inputStream == null) {
+            throw new IllegalStateException("fixture " + name + " not found");
+        }
+        return FileHelper.readFileToString(inputStream);
+    }
+
+    /**
+     * The recorded games search response with its results repeated, so we can measure larger payloads than the API returned.
+     */
+    static JsonObject gamesResponse(int copies) {
+        JsonObject response = JsonObject.tryParse(read("api.gamebrain.co_games_search.json"));
+        JsonArray results = response.tryGetJsonArray("results");
+        JsonArray repeatedResults = new JsonArray();
+        for (int i = 0; i < copies; i++) {
+            for (int j = 0; j < results.size(); j++) {
+                // parse each copy so no two results share their objects
+                repeatedResults.add(JsonObject.tryParse(results.tryGetJsonObject(j).toString()));
+            }
+        }
+        response.put("results", repeatedResults);
+        response.put("source", SOURCE);
+        return response;
+    }
+}
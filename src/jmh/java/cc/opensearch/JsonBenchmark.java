@@ -0,0 +1,66 @@
+package cc.opensearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and writing API responses: parsing and serializing them and projecting the raw bytes the way {@link UpstreamClient} hands them to
+ * {@link JsonProjector}. The bytes are a recorded response, no HTTP call is made.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    /** how many times the results of the recorded response are repeated */
+    @Param({"1", "10", "100"})
+    private int copies;
+
+    private JsonObject apiResponse;
+    private String json;
+    private byte[] bytes;
+    private JsonProjector jsonProjector;
+
+    @Setup
+    public void setup() {
+        apiResponse = Fixtures.gamesResponse(copies);
+        json = apiResponse.toString(2);
+        bytes = json.getBytes(StandardCharsets.UTF_8);
+        // the defaults from palladian.properties
+        jsonProjector = new JsonProjector(5 * 1024 * 1024, 50, 5000, 64);
+    }
+
+    @Benchmark
+    public JsonObject parse() {
+        return JsonObject.tryParse(json);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return apiResponse.toString();
+    }
+
+    @Benchmark
+    public JsonObject project() throws Exception {
+        return jsonProjector.project(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,45 @@
+package cc.opensearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deriving the keys that every request computes: the canonical key and vector of the query for the cache and the template name of the source.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyBenchmark {
+    private String query = "What are the best turn-based Strategy Games for PC in 2024?";
+    private String source = Fixtures.SOURCE;
+
+    @Benchmark
+    public String canonicalKey() {
+        return QueryNormalizer.canonicalKey(query);
+    }
+
+    @Benchmark
+    public float[] vectorize() {
+        return QueryNormalizer.vectorize(query);
+    }
+
+    @Benchmark
+    public String templateName() {
+        return HtmlRenderer.toTemplateName(source);
+    }
+}
@@ -0,0 +1,87 @@
+package cc.opensearch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What happens to an API response after the template was found: serializing it, hydrating a hand-crafted or a cached LLM template with it and
+ * summarizing it for the rendering prompt. No LLM is called, the LLM template is a recorded response.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+    /** how many times the results of the recorded response are repeated */
+    @Param({"1", "10", "100"})
+    private int copies;
+
+    private JsonObject apiResponse;
+    private String json;
+    private String llmResponse;
+    private CompiledTemplate handCraftedTemplate;
+    private CompiledTemplate llmTemplate;
+
+    @Setup
+    public void setup() {
+        apiResponse = Fixtures.gamesResponse(copies);
+        json = apiResponse.toString();
+        llmResponse = Fixtures.read("llm-html-response.txt");
+        // a directory that doesn't exist, so only the hand-crafted templates from the classpath are loaded
+        handCraftedTemplate = new TemplateRegistry("target/benchmark-templates", false).get(Fixtures.SOURCE);
+        if (handCraftedTemplate == null) {
+            throw new IllegalStateException("no hand-crafted template for " + Fixtures.SOURCE);
+        }
+        llmTemplate = CompiledTemplate.compileLlmResponse(llmResponse, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String serializeResponse() {
+        return apiResponse.toString();
+    }
+
+    @Benchmark
+    public String renderHandCraftedTemplate() {
+        return handCraftedTemplate.render(json);
+    }
+
+    @Benchmark
+    public String renderCachedLlmTemplate() {
+        return llmTemplate.render(json);
+    }
+
+    /**
+     * A cache hit in {@link HtmlRenderer#renderHtml(JsonObject)}: serialize the response once and hydrate the template.
+     */
+    @Benchmark
+    public String serializeAndRender() {
+        return llmTemplate.render(apiResponse.toString());
+    }
+
+    @Benchmark
+    public CompiledTemplate compileLlmResponse() {
+        return CompiledTemplate.compileLlmResponse(llmResponse, Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String summarizeResponse() {
+        return PromptBuilder.summarize(apiResponse, 1000);
+    }
+}
@@ -0,0 +1,414 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.helper.UrlHelper;
+import ws.palladian.helper.io.FileHelper;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Puts load on the search: starts the API from {@link Api#main(String[])} against a stub LLM and stub APIs on this machine and lets a number
+ * of clients search over HTTP (/search) and the websocket (/socket) at the same time. Popular queries are repeated, the others are new. At the
+ * end, the throughput, the percentiles of the stages and the cache hit rates are printed and written to a JSON file.
+ * <p>
+ * Options, e.g. --concurrency=100:
+ * <ul>
+ * <li>concurrency: number of clients searching at the same time (50)</li>
+ * <li>duration_seconds: how long the clients search (60), warmup_seconds: searches in the first seconds are not measured (10)</li>
+ * <li>repeat_ratio: share of searches for a popular query (0.7), websocket_share: share of searches over the websocket (0.5)</li>
+ * <li>llm_latency_millis: time to the first token (800), llm_chunk_delay_millis: time between streamed chunks (20)</li>
+ * <li>api_latency_millis: API response time (150), api_results: results per API response (20), api_error_rate: share of failing API calls (0)</li>
+ * <li>port: port of the search API (4567), result: where the results are written (target/load-test-result.json)</li>
+ * </ul>
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class LoadTest {
+    private static final Logger LOGGER = Logger.getLogger(LoadTest.class);
+
+    /** the popular queries, the first ones are asked most often */
+    private static final String[] QUERIES = {"strategy games", "cocktails with rum", "dog breeds", "facts about cats", "vegan pasta recipes",
+            "jokes about programmers", "latest news about space", "books about the roman empire", "weather in berlin", "open source rpg games",
+            "healthy breakfast recipes", "news about electric cars", "margarita recipe", "funny dad jokes", "games like stardew valley",
+            "recipes with chickpeas", "nutrition facts of bananas", "news about climate change", "quotes about courage", "bike thefts near me"};
+
+    /** new queries are popular queries with a twist */
+    private static final String[] MODIFIERS = {"best", "cheap", "new", "top rated", "for kids", "easy", "classic", "popular", "quick", "famous"};
+
+    private final Map<String, String> options;
+    private final int port;
+    private final double repeatRatio;
+    private final double websocketShare;
+
+    private final AtomicInteger newQueries = new AtomicInteger();
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong();
+    /** searches the admission control turned away, they don't wait for an answer */
+    private final AtomicLong overloaded = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /** stage => latencies in milliseconds */
+    private final Map<String, List<Long>> latencies = new TreeMap<>();
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+
+    private volatile boolean measuring = false;
+
+    public LoadTest(Map<String, String> options) {
+        this.options = options;
+        this.port = getInt("port", 4567);
+        this.repeatRatio = getDouble("repeat_ratio", 0.7);
+        this.websocketShare = getDouble("websocket_share", 0.5);
+    }
+
+    private int getInt(String option, int defaultValue) {
+        return options.containsKey(option) ? Integer.parseInt(options.get(option)) : defaultValue;
+    }
+
+    private double getDouble(String option, double defaultValue) {
+        return options.containsKey(option) ? Double.parseDouble(options.get(option)) : defaultValue;
+    }
+
+    public JsonObject run() throws Exception {
+        Path workDirectory = Files.createTempDirectory("open-search-load-test");
+        StubLlmServer llmServer = new StubLlmServer(0, getInt("llm_latency_millis", 800), getInt("llm_chunk_delay_millis", 20));
+        StubApiServer apiServer = new StubApiServer(0, getInt("api_latency_millis", 150), getInt("api_results", 20), getDouble("api_error_rate", 0));
+        llmServer.start();
+        apiServer.start();
+        configure(workDirectory, llmServer, apiServer);
+        ConfigHolder.getInstance().getConfig().setProperty("server.port", port);
+
+        Api.main(new String[0]);
+        spark.Spark.awaitInitialization();
+
+        int concurrency = getInt("concurrency", 50);
+        long warmupMillis = TimeUnit.SECONDS.toMillis(getInt("warmup_seconds", 10));
+        long durationMillis = TimeUnit.SECONDS.toMillis(getInt("duration_seconds", 60));
+        long start = System.currentTimeMillis();
+        long end = start + warmupMillis + durationMillis;
+        LOGGER.info("load test with " + concurrency + " clients for " + (warmupMillis + durationMillis) / 1000 + "s");
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Thread client = new Thread(() -> runClient(end), "load-test-client-" + i);
+            client.setDaemon(true);
+            clients.add(client);
+            client.start();
+        }
+        Thread.sleep(warmupMillis);
+        measuring = true;
+        long measuringStart = System.currentTimeMillis();
+        for (Thread client : clients) {
+            client.join(Math.max(1, end - System.currentTimeMillis()) + TimeUnit.MINUTES.toMillis(5));
+        }
+        long measuredMillis = System.currentTimeMillis() - measuringStart;
+
+        JsonObject result = createResult(measuredMillis);
+        result.put("stubLlm", llmServer.getStatistics());
+        result.put("stubApis", apiServer.getStatistics());
+
+        spark.Spark.stop();
+        llmServer.stop();
+        apiServer.stop();
+        return result;
+    }
+
+    /**
+     * Point the search at the stubs and keep everything it writes in the work directory, so every run starts cold.
+     */
+    private void configure(Path workDirectory, StubLlmServer llmServer, StubApiServer apiServer) throws Exception {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        config.setProperty("llm.providers", "local");
+        config.setProperty("api.local.chat_url", llmServer.getChatUrl());
+        config.setProperty("caching.store.directory", workDirectory.resolve("cache").toString());
+        config.setProperty("router.learned_routes_path", workDirectory.resolve("learned-routes.json").toString());
+        // all clients come from one address, the rate limit would measure itself
+        config.setProperty("admission.requests_per_minute", 0);
+
+        Path templateDirectory = workDirectory.resolve("html-templates");
+        Files.createDirectories(templateDirectory);
+        config.setProperty("rendering.templates.directory", templateDirectory.toString());
+
+        ClassLoader classLoader = LoadTest.class.getClassLoader();
+        JsonArray apis = JsonArray.tryParse(FileHelper.readFileToString(classLoader.getResourceAsStream("apis.json")));
+        for (int i = 0; i < apis.size(); i++) {
+            JsonObject apiJson = apis.tryGetJsonObject(i);
+            String url = apiJson.tryGetString("url");
+            String rewrittenUrl = apiServer.rewrite(url);
+            apiJson.put("url", rewrittenUrl);
+
+            // the stubs don't check keys, but APIs without a key are not used
+            String authenticationConfigKey = apiJson.tryGetString("authentication_config_key");
+            if (authenticationConfigKey != null && !authenticationConfigKey.isEmpty()) {
+                config.setProperty("api." + authenticationConfigKey + ".key", "load-test");
+            }
+
+            // the hand-crafted templates have to be found under the rewritten source
+            String templateName = HtmlRenderer.toTemplateName(Searcher.toSource(url));
+            try (InputStream template = classLoader.getResourceAsStream("html-templates/" + templateName + ".html")) {
+                if (template != null) {
+                    Files.copy(template, templateDirectory.resolve(HtmlRenderer.toTemplateName(Searcher.toSource(rewrittenUrl)) + ".html"));
+                }
+            }
+        }
+        Path apisPath = workDirectory.resolve("apis.json");
+        FileHelper.writeToFile(apisPath.toString(), apis.toString(2));
+        config.setProperty("apis.path", apisPath.toString());
+    }
+
+    private void runClient(long end) {
+        WebSocketClient webSocketClient = null;
+        try {
+            while (System.currentTimeMillis() < end) {
+                String query = nextQuery();
+                try {
+                    if (ThreadLocalRandom.current().nextDouble() < websocketShare) {
+                        if (webSocketClient == null) {
+                            webSocketClient = new WebSocketClient();
+                        }
+                        webSocketClient.search(query);
+                    } else {
+                        searchHttp(query);
+                    }
+                    searches.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    LOGGER.warn("search failed for query: " + query, e);
+                    failures.incrementAndGet();
+                    if (webSocketClient != null) {
+                        webSocketClient.close();
+                        webSocketClient = null;
+                    }
+                }
+            }
+        } finally {
+            if (webSocketClient != null) {
+                webSocketClient.close();
+            }
+        }
+    }
+
+    /**
+     * @return A popular query (skewed towards the first ones) or a new one.
+     */
+    private String nextQuery() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < repeatRatio) {
+            double skew = random.nextDouble();
+            return QUERIES[(int) (skew * skew * QUERIES.length)];
+        }
+        return MODIFIERS[random.nextInt(MODIFIERS.length)] + " " + QUERIES[random.nextInt(QUERIES.length)] + " " + newQueries.incrementAndGet();
+    }
+
+    private void searchHttp(String query) throws Exception {
+        long start = System.currentTimeMillis();
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/search?query=" + UrlHelper.encodeParameter(query)))
+                .timeout(Duration.ofMinutes(5))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 503) {
+            overloaded.incrementAndGet();
+            return;
+        }
+        if (response.statusCode() == 429) {
+            rateLimited.incrementAndGet();
+            return;
+        }
+        if (response.statusCode() == 404 || response.body().isEmpty()) {
+            unresolved.incrementAndGet();
+            return;
+        }
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("status " + response.statusCode());
+        }
+        record("http.total", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * One websocket connection that searches one query after the other. The progress messages tell when the stages finished.
+     */
+    private class WebSocketClient implements WebSocket.Listener {
+        private final WebSocket webSocket;
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<>();
+        /** the parts of the message that is being received */
+        private final StringBuilder buffer = new StringBuilder();
+
+        private WebSocketClient() {
+            webSocket = httpClient.newWebSocketBuilder().buildAsync(URI.create("ws://127.0.0.1:" + port + "/socket"), this).join();
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            buffer.append(data);
+            if (last) {
+                messages.add(buffer.toString());
+                buffer.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void search(String query) throws Exception {
+            messages.clear();
+            long start = System.currentTimeMillis();
+            webSocket.sendText(query, true).join();
+
+            long routed = -1;
+            long fetched = -1;
+            long firstChunk = -1;
+            boolean cached = false;
+            while (true) {
+                String message = messages.poll(5, TimeUnit.MINUTES);
+                if (message == null) {
+                    throw new IllegalStateException("no answer");
+                }
+                long now = System.currentTimeMillis();
+                if (message.equals("Found a cached response")) {
+                    cached = true;
+                    routed = now;
+                    fetched = now;
+                } else if (message.startsWith("Using API") && routed < 0) {
+                    routed = now;
+                } else if (message.equals("✔") && fetched < 0) {
+                    fetched = now;
+                } else if (message.startsWith(HtmlRenderer.HTML_CHUNK_MESSAGE) && firstChunk < 0) {
+                    firstChunk = now;
+                } else if (message.equals("Something went wrong")) {
+                    unresolved.incrementAndGet();
+                    return;
+                } else if (message.equals(Api.OVERLOADED_MESSAGE)) {
+                    overloaded.incrementAndGet();
+                    return;
+                } else if (message.equals(Api.RATE_LIMITED_MESSAGE)) {
+                    rateLimited.incrementAndGet();
+                    return;
+                } else if (message.startsWith("<")) {
+                    if (routed >= 0) {
+                        record("websocket.route", routed - start);
+                    }
+                    if (fetched >= 0 && !cached) {
+                        record("websocket.fetch", fetched - Math.max(start, routed));
+                    }
+                    if (firstChunk >= 0) {
+                        record("websocket.first_chunk", firstChunk - start);
+                    }
+                    record("websocket.render", now - Math.max(start, fetched));
+                    record(cached ? "websocket.total.cached" : "websocket.total.uncached", now - start);
+                    return;
+                }
+            }
+        }
+
+        private void close() {
+            webSocket.abort();
+        }
+    }
+
+    private void record(String stage, long millis) {
+        if (!measuring) {
+            return;
+        }
+        synchronized (latencies) {
+            latencies.computeIfAbsent(stage, k -> new ArrayList<>()).add(millis);
+        }
+    }
+
+    private JsonObject createResult(long measuredMillis) {
+        JsonObject result = new JsonObject();
+        JsonObject optionsJson = new JsonObject();
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            optionsJson.put(option.getKey(), option.getValue());
+        }
+        result.put("options", optionsJson);
+        result.put("measuredSeconds", measuredMillis / 1000.);
+
+        long measuredSearches = 0;
+        JsonObject stages = new JsonObject();
+        synchronized (latencies) {
+            for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+                long[] sorted = entry.getValue().stream().mapToLong(Long::longValue).toArray();
+                Arrays.sort(sorted);
+                JsonObject stage = new JsonObject();
+                stage.put("count", sorted.length);
+                stage.put("p50", percentile(sorted, 0.5));
+                stage.put("p95", percentile(sorted, 0.95));
+                stage.put("p99", percentile(sorted, 0.99));
+                stage.put("max", sorted[sorted.length - 1]);
+                stages.put(entry.getKey(), stage);
+                if (entry.getKey().endsWith(".total") || entry.getKey().startsWith("websocket.total")) {
+                    measuredSearches += sorted.length;
+                }
+            }
+        }
+        result.put("searchesPerSecond", measuredSearches * 1000. / Math.max(1, measuredMillis));
+        result.put("searches", searches.get());
+        result.put("failures", failures.get());
+        result.put("unresolved", unresolved.get());
+        result.put("overloaded", overloaded.get());
+        result.put("rateLimited", rateLimited.get());
+        result.put("stages", stages);
+
+        result.put("queryCache", Searcher.getInstance().getStatistics());
+        TemplateRegistry templateRegistry = HtmlRenderer.getInstance().getTemplateRegistry();
+        JsonObject templates = new JsonObject();
+        templates.put("handCraftedHits", templateRegistry.getHits());
+        templates.put("handCraftedMisses", templateRegistry.getMisses());
+        result.put("templates", templates);
+        result.put("llm", LargeLanguageModelApi.getInstance().getStatistics());
+        result.put("upstream", UpstreamClient.getInstance().getStatistics());
+        result.put("warmer", CacheWarmer.getInstance().getStatistics());
+        return result;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile * sorted.length) - 1)];
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] parts = arg.replaceFirst("^--", "").split("=", 2);
+            options.put(parts[0], parts.length > 1 ? parts[1] : "true");
+        }
+
+        JsonObject result = new LoadTest(options).run();
+        String resultPath = options.getOrDefault("result", "target/load-test-result.json");
+        Path directory = Paths.get(resultPath).toAbsolutePath().getParent();
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        FileHelper.writeToFile(resultPath, result.toString(2));
+        System.out.println(result.toString(2));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,108 @@
+package cc.opensearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for all APIs of the catalog. The load test rewrites the API URLs to http://127.0.0.1:port/host/path so every API is answered here
+ * with a list of results. The same request always gets the same response, some requests fail if an error rate is set.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class StubApiServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** how long an answer takes */
+    private final long latencyMillis;
+
+    /** how many results a response has */
+    private final int results;
+
+    /** share of requests that are answered with a 503 */
+    private final double errorRate;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    public StubApiServer(int port, long latencyMillis, int results, double errorRate) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.results = results;
+        this.errorRate = errorRate;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The URL the API URL is rewritten to, e.g. https://api.gamebrain.co/games/search?query={QUERY} =>
+     * http://127.0.0.1:4568/api.gamebrain.co/games/search?query={QUERY}
+     */
+    public String rewrite(String apiUrl) {
+        return apiUrl.replaceFirst("^https?://", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            calls.incrementAndGet();
+            StubLlmServer.sleep(StubLlmServer.jitter(latencyMillis));
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                StubLlmServer.send(exchange, 503, "application/json", "{\"error\":\"service unavailable\"}");
+                return;
+            }
+            StubLlmServer.send(exchange, 200, "application/json", createResponse(exchange.getRequestURI().toString()).toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private JsonObject createResponse(String request) {
+        Random random = new Random(request.hashCode());
+        JsonArray resultsJson = new JsonArray();
+        for (int i = 0; i < results; i++) {
+            int id = random.nextInt(1_000_000);
+            JsonObject resultJson = new JsonObject();
+            resultJson.put("id", id);
+            resultJson.put("title", "Result " + id);
+            resultJson.put("description", "A result for " + request + " with enough text to look like the descriptions real APIs return for their items.");
+            resultJson.put("url", "https://example.com/items/" + id);
+            resultJson.put("image", "https://example.com/images/" + id + ".jpg");
+            resultJson.put("rating", random.nextInt(100) / 10.);
+            resultsJson.add(resultJson);
+        }
+        JsonObject responseJson = new JsonObject();
+        responseJson.put("total", results + random.nextInt(1000));
+        responseJson.put("results", resultsJson);
+        return responseJson;
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("calls", calls.get());
+        statistics.put("errors", errors.get());
+        return statistics;
+    }
+}
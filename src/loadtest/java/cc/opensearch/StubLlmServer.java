@@ -0,0 +1,217 @@
+package cc.opensearch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ws.palladian.helper.UrlHelper;
+import ws.palladian.helper.io.FileHelper;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for an OpenAI compatible chat completions API. Routing requests are answered with the URL from the API catalog in the prompt that
+ * shares the most words with the query, rendering requests with a fixed Vue template. Answers take a configurable time and can be streamed.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class StubLlmServer {
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{[^}]+}");
+    private static final Pattern QUOTED_QUERY = Pattern.compile("asks for \"(.*?)\"");
+
+    private static final String TEMPLATE = "```html\n<!DOCTYPE html>\n<html lang=\"en\">\n<head>\n<meta charset=\"UTF-8\">\n<title>Result</title>\n"
+            + "<script src=\"https://unpkg.com/vue@next\"></script>\n</head>\n<body>\n<div id=\"app\">\n<!-- content_start -->\n<div v-if=\"jsonData\">\n"
+            + "<div v-for=\"item in jsonData.results\" :key=\"item.id\">\n<h3><a :href=\"item.url\">{{ item.title }}</a></h3>\n"
+            + "<img v-if=\"item.image\" :src=\"item.image\">\n<p>{{ item.description }}</p>\n</div>\n</div>\n<!-- content_end -->\n</div>\n"
+            + "<script>\nconst app = Vue.createApp({\n  data() {\n    return {\n      jsonData: {},\n    };\n  },\n  mounted() {\n    this.jsonData = {};\n"
+            + "  },\n}).mount('#app');\n</script>\n</body>\n</html>\n```";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** how long an answer takes before the first token */
+    private final long latencyMillis;
+
+    /** pause between two streamed chunks */
+    private final long chunkDelayMillis;
+
+    private final AtomicLong routingCalls = new AtomicLong();
+    private final AtomicLong renderingCalls = new AtomicLong();
+
+    public StubLlmServer(int port, long latencyMillis, long chunkDelayMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.chunkDelayMillis = chunkDelayMillis;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        server.createContext("/v1/chat/completions", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getChatUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/v1/chat/completions";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            JsonObject requestJson = JsonObject.tryParse(FileHelper.readFileToString(exchange.getRequestBody()));
+            if (requestJson == null) {
+                send(exchange, 400, "application/json", "{\"error\":\"invalid request\"}");
+                return;
+            }
+            JsonArray messages = requestJson.tryGetJsonArray("messages");
+            String system = "";
+            String user = "";
+            for (int i = 0; i < messages.size(); i++) {
+                JsonObject message = messages.tryGetJsonObject(i);
+                if ("system".equals(message.tryGetString("role"))) {
+                    system = message.tryGetString("content");
+                } else {
+                    user = message.tryGetString("content");
+                }
+            }
+
+            String answer;
+            if (system.contains("Represent the API response in HTML") || user.contains("Represent the API response in HTML")) {
+                renderingCalls.incrementAndGet();
+                answer = TEMPLATE;
+            } else {
+                routingCalls.incrementAndGet();
+                answer = route(system, user);
+            }
+
+            sleep(jitter(latencyMillis));
+            int usedTokens = PromptBuilder.estimateTokens(system) + PromptBuilder.estimateTokens(user) + PromptBuilder.estimateTokens(answer);
+            if (Boolean.TRUE.equals(requestJson.tryGetBoolean("stream"))) {
+                stream(exchange, answer, usedTokens);
+            } else {
+                JsonObject responseJson = new JsonObject();
+                JsonArray choices = new JsonArray();
+                JsonObject choice = new JsonObject();
+                JsonObject message = new JsonObject();
+                message.put("role", "assistant");
+                message.put("content", answer);
+                choice.put("message", message);
+                choices.add(choice);
+                responseJson.put("choices", choices);
+                JsonObject usage = new JsonObject();
+                usage.put("total_tokens", usedTokens);
+                responseJson.put("usage", usage);
+                send(exchange, 200, "application/json", responseJson.toString());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Pick the catalog entry whose description shares the most words with the query and fill its placeholders with the query.
+     */
+    private String route(String catalog, String user) {
+        Matcher queryMatcher = QUOTED_QUERY.matcher(user);
+        String query = queryMatcher.find() ? queryMatcher.group(1) : user;
+        Set<String> queryTerms = new HashSet<>(QueryNormalizer.tokenize(query));
+
+        String bestUrl = null;
+        int bestOverlap = -1;
+        // the catalog has one API per block: the description, the URL and an empty line
+        String[] lines = catalog.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            if (!lines[i].startsWith("http")) {
+                continue;
+            }
+            List<String> descriptionTerms = new ArrayList<>(QueryNormalizer.tokenize(lines[i - 1] + " " + lines[i].replaceAll("[/._?=&-]", " ")));
+            descriptionTerms.retainAll(queryTerms);
+            if (descriptionTerms.size() > bestOverlap) {
+                bestOverlap = descriptionTerms.size();
+                bestUrl = lines[i];
+            }
+        }
+        if (bestUrl == null) {
+            return "I don't know an API for that.";
+        }
+        return PLACEHOLDER.matcher(bestUrl).replaceAll(Matcher.quoteReplacement(UrlHelper.encodeParameter(query)));
+    }
+
+    private void stream(HttpExchange exchange, String answer, int usedTokens) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            // chunks of about one line, that is roughly what the LLMs stream
+            for (String line : answer.split("(?<=\n)")) {
+                JsonObject chunkJson = new JsonObject();
+                JsonArray choices = new JsonArray();
+                JsonObject choice = new JsonObject();
+                JsonObject delta = new JsonObject();
+                delta.put("content", line);
+                choice.put("delta", delta);
+                choices.add(choice);
+                chunkJson.put("choices", choices);
+                out.write(("data: " + chunkJson + "\n\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                sleep(chunkDelayMillis);
+            }
+            JsonObject usageJson = new JsonObject();
+            JsonObject usage = new JsonObject();
+            usage.put("total_tokens", usedTokens);
+            usageJson.put("usage", usage);
+            usageJson.put("choices", new JsonArray());
+            out.write(("data: " + usageJson + "\n\ndata: [DONE]\n\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @return The time plus or minus up to 25%, so not all requests take exactly the same time.
+     */
+    static long jitter(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        return millis * 3 / 4 + ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+    }
+
+    static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("routingCalls", routingCalls.get());
+        statistics.put("renderingCalls", renderingCalls.get());
+        return statistics;
+    }
+}
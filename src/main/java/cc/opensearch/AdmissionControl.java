@@ -0,0 +1,171 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which requests we work on. Every IP address and every websocket session gets a token bucket, so one client can't flood us, and only
+ * a limited number of searches may be on the cold path (routing and calling the APIs) at the same time. Searches that would exceed the limit
+ * fail right away instead of queueing; cached and stale responses don't need the cold path and are still served.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class AdmissionControl {
+    private static final Logger LOGGER = Logger.getLogger(AdmissionControl.class);
+
+    /** we forget clients that did not send a request for this long */
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    /** tokens per millisecond */
+    private final double refillRate;
+
+    /** how many requests a client can send at once */
+    private final int burst;
+
+    /** whether we take the client IP from the X-Forwarded-For header, only if we are behind a proxy we trust */
+    private final boolean trustForwardedFor;
+
+    /** the maximum number of clients we track, beyond that the idle ones are dropped */
+    private final int maxClients;
+
+    private final int maxColdSearches;
+    private final Semaphore coldSearches;
+
+    /** client key => bucket */
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    static class SingletonHolder {
+        static AdmissionControl instance = new AdmissionControl();
+    }
+
+    public static AdmissionControl getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    private static class TokenBucket {
+        private double tokens;
+        private long lastRefill;
+        private volatile long lastUsed;
+
+        private TokenBucket(int burst, long now) {
+            this.tokens = burst;
+            this.lastRefill = now;
+            this.lastUsed = now;
+        }
+
+        /**
+         * @return 0 if the request may go through, otherwise the milliseconds until the next token.
+         */
+        private synchronized long take(double refillRate, int burst, long now) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * refillRate);
+            lastRefill = now;
+            lastUsed = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) Math.ceil((1 - tokens) / refillRate);
+        }
+    }
+
+    /**
+     * The search would need the cold path but it is fully used. The client should try again later.
+     */
+    public static class OverloadedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public OverloadedException(String message) {
+            super(message);
+        }
+    }
+
+    private AdmissionControl() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        refillRate = config.getDouble("admission.requests_per_minute", 30) / 60_000.;
+        burst = config.getInt("admission.burst", 10);
+        trustForwardedFor = config.getBoolean("admission.trust_forwarded_for", false);
+        maxClients = config.getInt("admission.max_clients", 100_000);
+        maxColdSearches = config.getInt("admission.max_cold_searches", 32);
+        coldSearches = new Semaphore(maxColdSearches);
+    }
+
+    /**
+     * Take a token of the client.
+     *
+     * @return 0 if the client may send the request, otherwise the milliseconds until it may send the next one.
+     */
+    public long tryAcquire(String clientKey) {
+        if (refillRate <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (buckets.size() > maxClients) {
+            // only clients that are idle long enough have a full bucket again anyway, dropping them changes nothing
+            buckets.values().removeIf(bucket -> bucket.lastUsed < now - IDLE_MILLIS);
+        }
+        long waitMillis = buckets.computeIfAbsent(clientKey, k -> new TokenBucket(burst, now)).take(refillRate, burst, now);
+        if (waitMillis > 0) {
+            Metrics.getInstance().increment(Metrics.ADMISSION_REJECTIONS, "reason", "rate_limited");
+            LOGGER.debug("rate limited " + clientKey);
+        }
+        return waitMillis;
+    }
+
+    /**
+     * Forget the client, e.g. when its websocket session is closed.
+     */
+    public void release(String clientKey) {
+        buckets.remove(clientKey);
+    }
+
+    /**
+     * @param remoteAddress The address the request came from.
+     * @param forwardedFor The X-Forwarded-For header, may be null.
+     * @return The key of the client for rate limiting.
+     */
+    public String getClientKey(String remoteAddress, String forwardedFor) {
+        if (trustForwardedFor && forwardedFor != null && !forwardedFor.isBlank()) {
+            // the first address is the client, the rest are proxies
+            return "ip:" + forwardedFor.split(",")[0].trim();
+        }
+        return "ip:" + remoteAddress;
+    }
+
+    /**
+     * A websocket session has its own bucket next to the one of its address, so clients behind a shared address can't use up each other's
+     * session. Release it with {@link #release(String)} when the session is closed.
+     *
+     * @param sessionId The id of the websocket session.
+     * @return The key of the session for rate limiting.
+     */
+    public String getSessionKey(long sessionId) {
+        return "session:" + sessionId;
+    }
+
+    /**
+     * Enter the cold path without waiting. The caller must call {@link #exitColdPath()} when it is done.
+     *
+     * @throws OverloadedException If too many searches are on the cold path already.
+     */
+    public void enterColdPath() {
+        if (!coldSearches.tryAcquire()) {
+            Metrics.getInstance().increment(Metrics.ADMISSION_REJECTIONS, "reason", "overloaded");
+            throw new OverloadedException("too many uncached searches");
+        }
+    }
+
+    public void exitColdPath() {
+        coldSearches.release();
+    }
+
+    public int getColdSearches() {
+        return maxColdSearches - coldSearches.availablePermits();
+    }
+}
@@ -1,7 +1,12 @@
 package cc.opensearch;
 
-import ws.palladian.helper.io.FileHelper;
-import ws.palladian.persistence.json.JsonObject;
+import org.apache.commons.configuration.Configuration;
+import spark.Filter;
+import ws.palladian.helper.ConfigHolder;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static spark.Spark.*;
 
@@ -12,9 +17,19 @@ import static spark.Spark.*;
  * @since 21.12.2023 at 21:20
  **/
 public class Api {
+    /** what clients get when the search is overloaded, they should try again later */
+    static final String OVERLOADED_MESSAGE = "The search is busy right now, please try again in a moment";
+    static final String RATE_LIMITED_MESSAGE = "Too many requests, please slow down";
+
     public static void main(String[] args) {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        port(config.getInt("server.port", 4567));
+        // searches block a Jetty thread, so this limits the searches we work on at the same time
+        threadPool(config.getInt("server.max_threads", 200));
+
         webSocket("/socket", WebSocket.class);
 
+
         // enable CORS
         before((request, response) -> {
             response.header("Access-Control-Allow-Origin", "*");
@@ -22,6 +37,18 @@ public class Api {
             response.header("Access-Control-Allow-Headers", "*");
         });
 
+        // rate limit every client before we spend anything on its request
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        Filter rateLimit = (request, response) -> {
+            long waitMillis = admissionControl.tryAcquire(admissionControl.getClientKey(request.ip(), request.headers("X-Forwarded-For")));
+            if (waitMillis > 0) {
+                response.header("Retry-After", String.valueOf((waitMillis + 999) / 1000));
+                halt(429, RATE_LIMITED_MESSAGE);
+            }
+        };
+        before("/search", rateLimit);
+        before("/responses/*", rateLimit);
+
         options("/*", (request, response) -> {
             String accessControlRequestHeaders = request.headers("Access-Control-Request-Headers");
             if (accessControlRequestHeaders != null) {
@@ -37,15 +64,72 @@ public class Api {
         });
         
         get("/responses/:id", (req, res) -> {
-            res.type("application/json");
             String responseId = req.params(":id");
-            return FileHelper.readFileToString("data/response" + responseId + ".json");
+            // the id becomes part of a file path
+            if (responseId == null || !responseId.matches("[A-Za-z0-9_-]+")) {
+                halt(404);
+            }
+            return ResponseFiles.getInstance().serve(req, res, responseId);
         });
         get("/search", (req, res) -> {
             res.type("text/html");
-            JsonObject jsonResponse = Searcher.getInstance().search(req.queryParams("query"));
-            String html = HtmlRenderer.getInstance().renderHtml(jsonResponse);
+            // Spark routes can't respond asynchronously, but the stages run in the pipeline with their timeouts
+            SearchPipeline.SearchTask task = SearchPipeline.getInstance().search(req.queryParams("query"), null);
+            res.header("X-Trace-Id", task.getTraceId());
+            String html;
+            try {
+                html = task.getResult().get();
+            } catch (ExecutionException e) {
+                if (!SearchPipeline.isOverloaded(e)) {
+                    throw e;
+                }
+                // fail fast, queueing would only make every search slow
+                res.status(503);
+                res.header("Retry-After", "5");
+                res.type("text/plain");
+                return OVERLOADED_MESSAGE;
+            }
+            if (html == null) {
+                res.header("Cache-Control", "no-store");
+                return null;
+            }
+            // browsers and CDNs may keep the page as long as the response and the template it was rendered from are fresh
+            String etag = HttpCaching.etag(html);
+            res.header("Cache-Control", HttpCaching.cacheControl(task.getRevalidate(), task.getExpires(), System.currentTimeMillis()));
+            res.header("Vary", "Accept-Encoding");
+            if (HttpCaching.isNotModified(req.headers("If-None-Match"), etag)) {
+                res.header("ETag", etag);
+                res.status(304);
+                return "";
+            }
+            if (HttpCaching.accepts(req.headers("Accept-Encoding"), "gzip")) {
+                // Spark compresses the body if this header is set
+                res.header("Content-Encoding", "gzip");
+                etag = HttpCaching.etag(etag, "gzip");
+            }
+            res.header("ETag", etag);
             return html;
         });
+        get("/metrics", (req, res) -> {
+            res.type("text/plain; version=0.0.4");
+            return Metrics.getInstance().scrape();
+        });
+        // load balancers only send traffic once the components are initialized and warm
+        get("/health/ready", (req, res) -> {
+            res.type("text/plain");
+            if (!Startup.getInstance().isReady()) {
+                res.status(503);
+                return "starting";
+            }
+            return "ready";
+        });
+
+        CompletableFuture<Void> ready = Startup.getInstance().start();
+        if (Arrays.asList(args).contains("--exit-when-ready")) {
+            // a training run, e.g. to write the AppCDS archive of the classes that were loaded until now
+            ready.join();
+            stop();
+            System.exit(0);
+        }
     }
 }
\ No newline at end of file
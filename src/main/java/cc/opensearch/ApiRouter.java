@@ -0,0 +1,431 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import ws.palladian.helper.UrlHelper;
+import ws.palladian.helper.io.FileHelper;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks an API endpoint for a query without asking the LLM. The router knows the endpoints from apis.json through an inverted index over their
+ * descriptions and URL templates and it learns from queries that the LLM routed before, e.g. "cocktails with rum" => filter.php?i=rum teaches
+ * the router that "cocktails" + ingredient goes to that endpoint. Only if the router is confident it returns a URL, otherwise the LLM has to
+ * decide.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class ApiRouter {
+    private static final Logger LOGGER = Logger.getLogger(ApiRouter.class);
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^}]+)}");
+
+    /** placeholders that only make sense with a number from the query */
+    private static final Pattern NUMERIC_PLACEHOLDER = Pattern.compile("BARCODE|ISBN|YEAR|NUMBER|ZIP|AMOUNT");
+
+    /** a query parameter with a fixed value, e.g. name=mary or latitude=52.52 */
+    private static final Pattern LITERAL_PARAMETER = Pattern.compile("[?&]([^=&#]+)=([^{&#][^&#]*)");
+
+    /** literal parameters that select the response format and not the content */
+    private static final Set<String> FORMAT_PARAMETERS = Set.of("format", "type", "output");
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+
+    /** term => indices of the endpoints that contain the term */
+    private final Map<String, List<Integer>> invertedIndex = new HashMap<>();
+
+    /** sorted intent terms of a past query => endpoint */
+    private final Map<String, Endpoint> learnedRoutes = new LinkedHashMap<>();
+
+    /** where the learned routes are persisted, null if they should not be persisted */
+    private final String learnedRoutesPath;
+
+    /** minimum summed idf of the matched terms */
+    private final double minScore;
+
+    /** the best endpoint must score at least this factor higher than the second best */
+    private final double minMargin;
+
+    static class Endpoint {
+        private final String template;
+        private final Pattern templatePattern;
+        private final Set<String> terms;
+        /** the single placeholder in the template, null if there is none */
+        private final String placeholder;
+        /** we only fill out templates with at most one parameter ourselves, the rest is up to the LLM */
+        private final boolean fillable;
+        /** the template has example values baked in, e.g. ?name=mary, so it only fits the query it was written for */
+        private final boolean hasLiteralValues;
+        /** the position of the API in apis.json */
+        private final int apiIndex;
+        /** the median latency the endpoint import measured, the maximum if it is unknown */
+        private final long latencyMillis;
+
+        Endpoint(String template, Set<String> terms, List<String> placeholders, int apiIndex, long latencyMillis) {
+            this.template = template;
+            this.terms = terms;
+            this.placeholder = placeholders.size() == 1 ? placeholders.get(0) : null;
+            this.fillable = placeholders.size() <= 1;
+            this.hasLiteralValues = hasLiteralValues(template);
+            this.apiIndex = apiIndex;
+            this.latencyMillis = latencyMillis;
+
+            // turn the template into a pattern so we can recognize URLs the LLM filled out
+            StringBuilder regex = new StringBuilder();
+            Matcher matcher = PLACEHOLDER.matcher(template);
+            int last = 0;
+            while (matcher.find()) {
+                regex.append(Pattern.quote(template.substring(last, matcher.start()))).append("([^&/?#]+)");
+                last = matcher.end();
+            }
+            regex.append(Pattern.quote(template.substring(last)));
+            this.templatePattern = Pattern.compile(regex.toString());
+        }
+    }
+
+    private static boolean hasLiteralValues(String template) {
+        Matcher matcher = LITERAL_PARAMETER.matcher(template);
+        while (matcher.find()) {
+            if (!FORMAT_PARAMETERS.contains(matcher.group(1).toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ApiRouter(JsonArray availableApis, String learnedRoutesPath, double minScore, double minMargin) {
+        this.learnedRoutesPath = learnedRoutesPath;
+        this.minScore = minScore;
+        this.minMargin = minMargin;
+
+        for (int i = 0; i < availableApis.size(); i++) {
+            JsonObject apiJson = availableApis.tryGetJsonObject(i);
+            String template = apiJson.tryGetString("url");
+            if (template == null) {
+                continue;
+            }
+            Set<String> terms = new HashSet<>();
+            for (String token : QueryNormalizer.tokenize(apiJson.tryGetString("description"))) {
+                terms.add(stem(token));
+            }
+            // the path of the URL template usually tells a lot too, e.g. /recipes/complexSearch
+            String templateWithoutPlaceholders = PLACEHOLDER.matcher(template).replaceAll(" ");
+            for (String token : QueryNormalizer.tokenize(templateWithoutPlaceholders.replaceAll("([a-z])([A-Z])", "$1 $2"))) {
+                if (!token.equals("http") && !token.equals("https") && !token.equals("api") && !token.equals("json")) {
+                    terms.add(stem(token));
+                }
+            }
+
+            List<String> placeholders = new ArrayList<>();
+            Matcher matcher = PLACEHOLDER.matcher(template);
+            while (matcher.find()) {
+                placeholders.add(matcher.group(1));
+            }
+
+            Endpoint endpoint = new Endpoint(template, terms, placeholders, i, apiJson.tryGetLong("latency_millis", Long.MAX_VALUE));
+            int endpointIndex = endpoints.size();
+            endpoints.add(endpoint);
+            for (String term : terms) {
+                invertedIndex.computeIfAbsent(term, k -> new ArrayList<>()).add(endpointIndex);
+            }
+        }
+
+        loadLearnedRoutes();
+        LOGGER.info("api router indexed " + endpoints.size() + " endpoints and " + learnedRoutes.size() + " learned routes");
+    }
+
+    /**
+     * Find an endpoint for the query.
+     *
+     * @return The filled out URL or null if we are not confident enough and the LLM should decide.
+     */
+    public String route(String query) {
+        // the stems are only for matching, the placeholders are filled with the tokens as they were in the query
+        List<String> tokens = QueryNormalizer.tokenize(query);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+
+        String url = routeLearned(tokens);
+        if (url != null) {
+            LOGGER.info("routing source=learned query=\"" + query + "\" url=" + url);
+            return url;
+        }
+
+        url = routeIndex(tokens);
+        if (url != null) {
+            LOGGER.info("routing source=local query=\"" + query + "\" url=" + url);
+        }
+        return url;
+    }
+
+    /**
+     * Use the most specific learned route whose intent terms are all in the query.
+     */
+    private String routeLearned(List<String> tokens) {
+        Set<String> querySet = new HashSet<>();
+        for (String token : tokens) {
+            querySet.add(stem(token));
+        }
+        String bestUrl = null;
+        int bestSize = 0;
+        synchronized (learnedRoutes) {
+            for (Map.Entry<String, Endpoint> entry : learnedRoutes.entrySet()) {
+                List<String> intentTerms = List.of(entry.getKey().split(" "));
+                if (intentTerms.size() <= bestSize || !querySet.containsAll(intentTerms)) {
+                    continue;
+                }
+                List<String> residual = new ArrayList<>();
+                for (String token : tokens) {
+                    if (!intentTerms.contains(stem(token))) {
+                        residual.add(token);
+                    }
+                }
+                String url = fill(entry.getValue(), residual);
+                if (url != null) {
+                    bestUrl = url;
+                    bestSize = intentTerms.size();
+                }
+            }
+        }
+        return bestUrl;
+    }
+
+    /**
+     * Rank the APIs for the query, e.g. to only show the LLM the ones that might be relevant.
+     *
+     * @return The positions of the APIs in apis.json that have anything to do with the query, the best one first.
+     */
+    public List<Integer> rank(String query, int maxCandidates) {
+        List<String> terms = new ArrayList<>();
+        for (String token : QueryNormalizer.tokenize(query)) {
+            terms.add(stem(token));
+        }
+        double[] scores = score(terms);
+        List<Integer> candidates = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0) {
+                candidates.add(i);
+            }
+        }
+        // equally relevant APIs are ranked by how fast they answer
+        candidates.sort((a, b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a])
+                : Long.compare(endpoints.get(a).latencyMillis, endpoints.get(b).latencyMillis));
+        List<Integer> apiIndices = new ArrayList<>();
+        for (int endpointIndex : candidates.subList(0, Math.min(maxCandidates, candidates.size()))) {
+            apiIndices.add(endpoints.get(endpointIndex).apiIndex);
+        }
+        return apiIndices;
+    }
+
+    /**
+     * @return The positions of all APIs in apis.json, the fastest first. APIs whose latency was never measured come last in file order.
+     */
+    public List<Integer> rankByLatency() {
+        List<Endpoint> byLatency = new ArrayList<>(endpoints);
+        byLatency.sort((a, b) -> Long.compare(a.latencyMillis, b.latencyMillis));
+        List<Integer> apiIndices = new ArrayList<>();
+        for (Endpoint endpoint : byLatency) {
+            apiIndices.add(endpoint.apiIndex);
+        }
+        return apiIndices;
+    }
+
+    /**
+     * Score the endpoints by the summed idf of the query terms they contain.
+     */
+    private double[] score(List<String> terms) {
+        double[] scores = new double[endpoints.size()];
+        for (String term : new HashSet<>(terms)) {
+            List<Integer> postings = invertedIndex.get(term);
+            if (postings == null) {
+                continue;
+            }
+            double idf = Math.log(1. + (double) endpoints.size() / postings.size());
+            for (int endpointIndex : postings) {
+                scores[endpointIndex] += idf;
+            }
+        }
+        return scores;
+    }
+
+    private String routeIndex(List<String> tokens) {
+        List<String> terms = new ArrayList<>();
+        for (String token : tokens) {
+            terms.add(stem(token));
+        }
+        double[] scores = score(terms);
+
+        int best = -1;
+        double bestScore = 0;
+        double secondScore = 0;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > bestScore) {
+                secondScore = bestScore;
+                bestScore = scores[i];
+                best = i;
+            } else if (scores[i] > secondScore) {
+                secondScore = scores[i];
+            }
+        }
+        if (best < 0 || bestScore < minScore || bestScore < secondScore * minMargin) {
+            return null;
+        }
+
+        Endpoint endpoint = endpoints.get(best);
+        if (!endpoint.fillable) {
+            return null;
+        }
+        List<String> residual = new ArrayList<>();
+        for (String token : tokens) {
+            if (!endpoint.terms.contains(stem(token))) {
+                residual.add(token);
+            }
+        }
+        return fill(endpoint, residual);
+    }
+
+    /**
+     * Fill the placeholder of the endpoint with the query tokens that are not about the endpoint itself.
+     *
+     * @param residual The unstemmed query tokens that did not match the endpoint.
+     * @return The URL or null if the residual tokens do not fit the placeholder.
+     */
+    static String fill(Endpoint endpoint, List<String> residual) {
+        if (endpoint.placeholder == null) {
+            // a query that says more than the endpoint, e.g. "weather in tokyo" for a forecast of fixed coordinates, needs the LLM
+            return residual.isEmpty() && !endpoint.hasLiteralValues ? endpoint.template : null;
+        }
+        if (residual.isEmpty()) {
+            return null;
+        }
+
+        String value;
+        String placeholder = endpoint.placeholder;
+        if (placeholder.contains(",")) {
+            // enumerations like {boy,girl,neutral}, the query has to name one of the options
+            value = null;
+            for (String option : placeholder.split(",")) {
+                String optionTerm = stem(option.trim().toLowerCase(Locale.ROOT));
+                for (String token : residual) {
+                    if (stem(token).equals(optionTerm)) {
+                        value = option.trim();
+                    }
+                }
+            }
+        } else if (NUMERIC_PLACEHOLDER.matcher(placeholder).find()) {
+            value = null;
+            for (String token : residual) {
+                if (token.chars().allMatch(Character::isDigit)) {
+                    value = token;
+                }
+            }
+        } else {
+            value = String.join(" ", residual);
+        }
+        if (value == null) {
+            return null;
+        }
+
+        return endpoint.template.replace("{" + placeholder + "}", UrlHelper.encodeParameter(value));
+    }
+
+    /**
+     * Learn from a URL that the LLM picked for a query and that returned a valid response.
+     */
+    public void learn(String query, String url) {
+        for (Endpoint endpoint : endpoints) {
+            if (!endpoint.fillable) {
+                continue;
+            }
+            Matcher matcher = endpoint.templatePattern.matcher(url);
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            // the intent terms are all query terms that were not used as the parameter value
+            Set<String> valueTerms = new HashSet<>();
+            if (matcher.groupCount() == 1) {
+                String value = URLDecoder.decode(matcher.group(1), StandardCharsets.UTF_8);
+                for (String token : QueryNormalizer.tokenize(value)) {
+                    valueTerms.add(stem(token));
+                }
+                if (valueTerms.isEmpty()) {
+                    return;
+                }
+            }
+            TreeSet<String> intentTerms = new TreeSet<>();
+            for (String token : QueryNormalizer.tokenize(query)) {
+                String term = stem(token);
+                if (!valueTerms.contains(term)) {
+                    intentTerms.add(term);
+                }
+            }
+            if (intentTerms.isEmpty()) {
+                return;
+            }
+
+            String intentKey = String.join(" ", intentTerms);
+            synchronized (learnedRoutes) {
+                if (learnedRoutes.put(intentKey, endpoint) != endpoint) {
+                    LOGGER.info("learned route \"" + intentKey + "\" => " + endpoint.template);
+                    saveLearnedRoutes();
+                }
+            }
+            return;
+        }
+    }
+
+    private void loadLearnedRoutes() {
+        if (learnedRoutesPath == null) {
+            return;
+        }
+        JsonObject routesJson = JsonObject.tryParse(FileHelper.tryReadFileToString(learnedRoutesPath));
+        if (routesJson == null) {
+            return;
+        }
+        for (String intentKey : routesJson.keySet()) {
+            String template = routesJson.tryGetString(intentKey);
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.fillable && endpoint.template.equals(template)) {
+                    learnedRoutes.put(intentKey, endpoint);
+                }
+            }
+        }
+    }
+
+    private void saveLearnedRoutes() {
+        if (learnedRoutesPath == null) {
+            return;
+        }
+        JsonObject routesJson = new JsonObject();
+        for (Map.Entry<String, Endpoint> entry : learnedRoutes.entrySet()) {
+            routesJson.put(entry.getKey(), entry.getValue().template);
+        }
+        FileHelper.writeToFile(learnedRoutesPath, routesJson.toString(2));
+    }
+
+    /**
+     * A very light stemmer so that "cocktails" finds "cocktail".
+     */
+    static String stem(String token) {
+        if (token.length() > 3 && token.endsWith("s") && !token.endsWith("ss")) {
+            return token.substring(0, token.length() - 1);
+        }
+        return token;
+    }
+}
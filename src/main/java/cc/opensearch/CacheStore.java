@@ -0,0 +1,63 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores cached API responses and HTML templates. Values are JSON objects with an "expires" field, expired values are never returned.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public interface CacheStore extends Closeable {
+    /**
+     * @return The value for the key or null if there is none or it has expired.
+     */
+    JsonObject get(String collection, String key);
+
+    void put(String collection, String key, JsonObject value);
+
+    class SingletonHolder {
+        static CacheStore instance = create(ConfigHolder.getInstance().getConfig());
+    }
+
+    /**
+     * @return The cache store that is configured with caching.store, shared by everyone who caches.
+     */
+    static CacheStore getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    private static CacheStore create(Configuration config) {
+        CacheStore localStore = createLocal(config);
+        List<String> peers = Arrays.asList(config.getStringArray("caching.peers"));
+        if (peers.size() < 2) {
+            return localStore;
+        }
+        try {
+            return new PeerCacheStore(localStore, peers, config.getString("caching.peers.self"), config.getString("caching.peers.secret"),
+                    config.getInt("caching.peers.virtual_nodes", 100), config.getInt("caching.peers.timeout_millis", 200),
+                    config.getLong("caching.peers.retry_seconds", 30) * 1000);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not start the peer cache on " + config.getString("caching.peers.self"), e);
+        }
+    }
+
+    private static CacheStore createLocal(Configuration config) {
+        String store = config.getString("caching.store", "log");
+        if ("jsondatabase".equals(store)) {
+            return new JsonDatabaseCacheStore("data", Map.of(Searcher.RESPONSES_COLLECTION, "_id", HtmlRenderer.TEMPLATES_COLLECTION, "source",
+                    HtmlRenderer.SAMPLES_COLLECTION, "source"));
+        }
+        return new MappedLogCacheStore(config.getString("caching.store.directory", "data/cache"), config.getLong("caching.store.max_size_mb", 512) * 1024 * 1024,
+                config.getLong("caching.store.compaction_minutes", 10));
+    }
+}
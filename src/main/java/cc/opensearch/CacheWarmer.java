@@ -0,0 +1,283 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.helper.UrlHelper;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps popular queries out of the cold path. Stale responses and templates are refreshed in the background while the stale version is still
+ * served, and the most frequent queries are refreshed before they even become stale. Query frequencies are counted in a count-min sketch.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class CacheWarmer {
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmer.class);
+
+    /** whether popular queries are counted and kept warm, only makes sense if responses are cached */
+    private final boolean enabled;
+
+    /** how many of the most frequent queries are kept warm */
+    private final int topQueries;
+
+    /** refresh popular responses and templates this long before they become stale */
+    private final long refreshAheadMillis;
+
+    /** maximum number of API calls per domain and minute that the warmer makes */
+    private final int maxCallsPerDomainPerMinute;
+
+    private final CountMinSketch queryCounts = new CountMinSketch(4, 4096);
+
+    /** canonical key => query of the candidates for the most frequent queries */
+    private final Map<String, String> frequentQueries = new HashMap<>();
+
+    /** canonical keys of queries and sources of templates that are being refreshed */
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    /** domain => calls in the current minute */
+    private final Map<String, int[]> domainCalls = new HashMap<>();
+    private long domainCallsMinute = 0L;
+
+    /** the refreshes, bounded so that the warmer never competes with the searches for resources */
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    static class SingletonHolder {
+        static CacheWarmer instance = new CacheWarmer();
+    }
+
+    public static CacheWarmer getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    private CacheWarmer() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        enabled = config.getBoolean("caching.json", false) && config.getBoolean("warmer.enabled", true);
+        topQueries = config.getInt("warmer.top_queries", 50);
+        refreshAheadMillis = TimeUnit.MINUTES.toMillis(config.getLong("warmer.refresh_ahead_minutes", 30));
+        maxCallsPerDomainPerMinute = config.getInt("warmer.max_calls_per_domain_per_minute", 10);
+        int threads = config.getInt("warmer.threads", 2);
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(config.getInt("warmer.queue_size", 100)), runnable -> {
+            Thread thread = new Thread(runnable, "cache-warmer-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long intervalMinutes = config.getLong("warmer.interval_minutes", 5);
+        if (enabled && intervalMinutes > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-warmer-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::warm, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Count the query so we know which ones are popular.
+     */
+    public void recordQuery(String query) {
+        String key = QueryNormalizer.canonicalKey(query);
+        if (!enabled || key.isEmpty()) {
+            return;
+        }
+        int count = queryCounts.add(key);
+        synchronized (frequentQueries) {
+            frequentQueries.put(key, query);
+            // only keep a few more candidates than we warm, drop the least frequent one
+            if (frequentQueries.size() > topQueries * 4) {
+                String leastFrequentKey = null;
+                int leastCount = count;
+                for (String candidateKey : frequentQueries.keySet()) {
+                    int candidateCount = queryCounts.estimate(candidateKey);
+                    if (candidateCount <= leastCount) {
+                        leastCount = candidateCount;
+                        leastFrequentKey = candidateKey;
+                    }
+                }
+                frequentQueries.remove(leastFrequentKey == null ? key : leastFrequentKey);
+            }
+        }
+    }
+
+    /**
+     * @return The most frequent queries, the most frequent first.
+     */
+    public List<String> getTopQueries() {
+        List<Map.Entry<String, String>> candidates;
+        synchronized (frequentQueries) {
+            candidates = new ArrayList<>(frequentQueries.entrySet());
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, String> candidate : candidates) {
+            counts.put(candidate.getKey(), queryCounts.estimate(candidate.getKey()));
+        }
+        candidates.sort((a, b) -> Integer.compare(counts.get(b.getKey()), counts.get(a.getKey())));
+        List<String> queries = new ArrayList<>();
+        for (Map.Entry<String, String> candidate : candidates.subList(0, Math.min(topQueries, candidates.size()))) {
+            queries.add(candidate.getValue());
+        }
+        return queries;
+    }
+
+    /**
+     * Refresh the popular queries whose responses are missing or become stale soon. Counts are halved afterwards so that queries that are not
+     * asked anymore drop out.
+     */
+    private void warm() {
+        try {
+            long refreshTime = System.currentTimeMillis() + refreshAheadMillis;
+            Searcher searcher = Searcher.getInstance();
+            for (String query : getTopQueries()) {
+                JsonObject apiResponse = searcher.peekCachedResponse(query);
+                if (apiResponse == null || Searcher.isStale(apiResponse, refreshTime)) {
+                    refresh(query);
+                } else {
+                    revalidateTemplate(apiResponse);
+                }
+            }
+            queryCounts.halve();
+            synchronized (frequentQueries) {
+                frequentQueries.keySet().removeIf(key -> queryCounts.estimate(key) == 0);
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not warm the cache", e);
+        }
+    }
+
+    /**
+     * Route and fetch the query in the background, the response replaces the cached one. Then make sure its template is fresh too. The refresh
+     * joins a search for the same query that is running already and yields to searches when the cold path is full.
+     */
+    public void refresh(String query) {
+        submit("query:" + QueryNormalizer.canonicalKey(query), () -> {
+            // the domains of the cached response are checked before the LLM routes the query, so we don't pay for a route we can't use
+            Set<String> checkedDomains = new HashSet<>();
+            JsonObject cachedResponse = Searcher.getInstance().peekCachedResponse(query);
+            String cachedSource = cachedResponse != null ? cachedResponse.tryGetString("source") : null;
+            if (cachedSource != null) {
+                // merged responses have the sources of all APIs
+                for (String source : cachedSource.split("\\+")) {
+                    String domain = UrlHelper.getDomain(source, false, false);
+                    if (checkedDomains.add(domain) && !allowCall(domain)) {
+                        LOGGER.info("not refreshing \"" + query + "\", too many calls to " + domain);
+                        return;
+                    }
+                }
+            }
+            JsonObject apiResponse;
+            try {
+                apiResponse = SearchPipeline.getInstance().refresh(query, route -> {
+                    for (String url : route.getUrls()) {
+                        String domain = UrlHelper.getDomain(url, false, false);
+                        if (!checkedDomains.contains(domain) && !allowCall(domain)) {
+                            LOGGER.info("not refreshing \"" + query + "\", too many calls to " + url);
+                            return false;
+                        }
+                    }
+                    return true;
+                }).get();
+            } catch (ExecutionException e) {
+                if (SearchPipeline.isOverloaded(e)) {
+                    LOGGER.debug("not refreshing \"" + query + "\", the cold path is full");
+                    return;
+                }
+                throw e;
+            }
+            if (apiResponse != null) {
+                refreshes.incrementAndGet();
+                LOGGER.info("refreshed response for \"" + query + "\"");
+                HtmlRenderer.getInstance().revalidateTemplate(apiResponse, refreshAheadMillis);
+            }
+        });
+    }
+
+    /**
+     * Generate a new template for the source of the response in the background if it is stale or becomes stale soon.
+     */
+    public void revalidateTemplate(JsonObject apiResponse) {
+        String source = apiResponse.tryGetString("source");
+        if (source == null) {
+            return;
+        }
+        submit("template:" + source, () -> HtmlRenderer.getInstance().revalidateTemplate(apiResponse, refreshAheadMillis));
+    }
+
+    private interface Refresh {
+        void run() throws Exception;
+    }
+
+    /**
+     * Run the refresh unless one for the same key is running already or the queue is full.
+     */
+    private void submit(String key, Refresh refresh) {
+        if (!refreshing.add(key)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    refresh.run();
+                } catch (Exception e) {
+                    LOGGER.error("refresh of " + key + " failed", e);
+                } finally {
+                    refreshing.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshing.remove(key);
+            LOGGER.debug("warmer queue is full, not refreshing " + key);
+        }
+    }
+
+    /**
+     * @return True if the warmer may make another call to the domain in this minute.
+     */
+    private boolean allowCall(String domain) {
+        long minute = System.currentTimeMillis() / 60_000;
+        synchronized (domainCalls) {
+            if (minute != domainCallsMinute) {
+                domainCalls.clear();
+                domainCallsMinute = minute;
+            }
+            int[] calls = domainCalls.computeIfAbsent(domain == null ? "" : domain, k -> new int[1]);
+            if (calls[0] >= maxCallsPerDomainPerMinute) {
+                return false;
+            }
+            calls[0]++;
+            return true;
+        }
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("refreshes", refreshes.get());
+        statistics.put("refreshing", refreshing.size());
+        synchronized (frequentQueries) {
+            statistics.put("trackedQueries", frequentQueries.size());
+        }
+        return statistics;
+    }
+}
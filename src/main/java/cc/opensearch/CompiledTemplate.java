@@ -0,0 +1,148 @@
+package cc.opensearch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An HTML template that is split at the points where the JSON data goes, so rendering is nothing but concatenating the parts and the data.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class CompiledTemplate {
+    /** the marker in templates that is replaced with the JSON data */
+    public static final String JSON_DATA_MARKER = "###JSON_DATA###";
+
+    /** the script that mounts the Vue app with the data, added to LLM generated HTML */
+    public static final String MOUNT_SCRIPT = "<script>\n" + "const app = Vue.createApp({\n" + "  data() {\n" + "    return {\n" + "      jsonData: {},\n" + "    };\n"
+            + "  },\n" + "  mounted() {\n" + "    this.jsonData=" + JSON_DATA_MARKER + ";\n" + "  },\n" + "}).mount('#app');\n" + "</script>";
+
+    /** the parts of the template between the data markers */
+    private final String[] segments;
+
+    /** when the template expires, Long.MAX_VALUE if it is permanent */
+    private final long expires;
+
+    /** after this time the template is still used but should be generated again */
+    private final long revalidate;
+
+    private final int length;
+
+    /** whether the template has the Vue app and a place for the data, checked once when it is compiled */
+    private final boolean valid;
+
+    /** computed when it is first needed, most templates are never sent on their own */
+    private volatile String hash;
+
+    private CompiledTemplate(String[] segments, long revalidate, long expires) {
+        this.segments = segments;
+        this.revalidate = revalidate;
+        this.expires = expires;
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.length = length;
+        this.valid = segments.length > 1 && String.join(JSON_DATA_MARKER, segments).contains("<div id=\"app\">");
+    }
+
+    /**
+     * Compile a template that contains the {@link #JSON_DATA_MARKER}, e.g. a hand-crafted one.
+     */
+    public static CompiledTemplate compile(String html, long expires) {
+        return compile(html, expires, expires);
+    }
+
+    /**
+     * Compile a template that is stale after the revalidate time and must not be used after it expired.
+     */
+    public static CompiledTemplate compile(String html, long revalidate, long expires) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        int markerPosition;
+        while ((markerPosition = html.indexOf(JSON_DATA_MARKER, start)) >= 0) {
+            segments.add(html.substring(start, markerPosition));
+            start = markerPosition + JSON_DATA_MARKER.length();
+        }
+        segments.add(html.substring(start));
+        return new CompiledTemplate(segments.toArray(new String[0]), revalidate, expires);
+    }
+
+    /**
+     * Compile the raw HTML response of the LLM: strip the code fence and scripts and add the mount script.
+     */
+    public static CompiledTemplate compileLlmResponse(String htmlResponse, long expires) {
+        return compileLlmResponse(htmlResponse, expires, expires);
+    }
+
+    public static CompiledTemplate compileLlmResponse(String htmlResponse, long revalidate, long expires) {
+        return compile(HtmlStreamTransformer.transform(htmlResponse, MOUNT_SCRIPT), revalidate, expires);
+    }
+
+    /**
+     * @return True if the template has the Vue app and a place for the data, otherwise it should not be reused.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public String render(String json) {
+        // sized exactly, so the buffer never grows
+        StringBuilder buffer = new StringBuilder(length + (segments.length - 1) * json.length());
+        buffer.append(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            buffer.append(json).append(segments[i]);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * @return The template with the data markers.
+     */
+    public String getHtml() {
+        return String.join(JSON_DATA_MARKER, segments);
+    }
+
+    /**
+     * @return A hash of the template, clients that have a template with this hash don't need it again.
+     */
+    public String getHash() {
+        String hash = this.hash;
+        if (hash == null) {
+            String etag = HttpCaching.etag(getHtml());
+            hash = etag.substring(1, etag.length() - 1);
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public long getRevalidate() {
+        return revalidate;
+    }
+
+    public boolean isExpired(long now) {
+        return expires <= now;
+    }
+
+    /**
+     * @return True if the template can still be used but should be generated again.
+     */
+    public boolean isStale(long now) {
+        return revalidate <= now;
+    }
+
+    public boolean isPermanent() {
+        return expires == Long.MAX_VALUE;
+    }
+
+    /**
+     * @return A permanent copy of this template.
+     */
+    public CompiledTemplate toPermanent() {
+        return new CompiledTemplate(segments, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+}
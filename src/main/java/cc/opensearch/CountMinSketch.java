@@ -0,0 +1,83 @@
+package cc.opensearch;
+
+/**
+ * Counts how often keys occur in a fixed amount of memory. Estimates are never too low and only too high if keys collide in every row, which
+ * is good enough to tell popular queries from rare ones. Counts can be halved regularly so old popularity fades.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final int[][] counters;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new int[depth][width];
+    }
+
+    /**
+     * Count the key once.
+     *
+     * @return The new estimate for the key.
+     */
+    public synchronized int add(String key) {
+        int[] columns = columns(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row][columns[row]]);
+        }
+        // conservative update: only the counters that define the estimate are increased, that keeps collisions from inflating it
+        for (int row = 0; row < depth; row++) {
+            if (counters[row][columns[row]] == estimate) {
+                counters[row][columns[row]]++;
+            }
+        }
+        return estimate + 1;
+    }
+
+    public synchronized int estimate(String key) {
+        int[] columns = columns(key);
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counters[row][columns[row]]);
+        }
+        return estimate;
+    }
+
+    /**
+     * Halve all counts so that recent occurrences count more than old ones.
+     */
+    public synchronized void halve() {
+        for (int[] row : counters) {
+            for (int column = 0; column < width; column++) {
+                row[column] >>>= 1;
+            }
+        }
+    }
+
+    private int[] columns(String key) {
+        int[] columns = new int[depth];
+        // derive all row hashes from two hashes of the key (Kirsch-Mitzenmacher)
+        int hash1 = mix(key.hashCode());
+        int hash2 = mix(hash1 ^ 0x9e3779b9);
+        for (int row = 0; row < depth; row++) {
+            columns[row] = Math.floorMod(hash1 + row * hash2, width);
+        }
+        return columns;
+    }
+
+    /**
+     * The finalizer of MurmurHash3 to spread the bits of the hash.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
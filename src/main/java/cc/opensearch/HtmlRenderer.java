@@ -4,16 +4,16 @@ import org.apache.log4j.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 import ws.palladian.helper.ConfigHolder;
 import ws.palladian.helper.io.FileHelper;
-import ws.palladian.helper.nlp.PatternHelper;
 import ws.palladian.helper.nlp.StringHelper;
 import ws.palladian.persistence.json.JsonArray;
-import ws.palladian.persistence.json.JsonDatabase;
 import ws.palladian.persistence.json.JsonObject;
 
-import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Pattern;
 
 /**
  * The HTML renderer takes care of transforming a JSON response into a human-readable HTML response.
@@ -24,11 +24,53 @@ import java.util.regex.Pattern;
 public class HtmlRenderer {
     private static final Logger LOGGER = Logger.getLogger(HtmlRenderer.class);
     private final boolean caching;
-    private final JsonDatabase jsonDatabase;
-    private static final String TEMPLATES_COLLECTION = "html-templates";
+    private final CacheStore cacheStore;
+    static final String TEMPLATES_COLLECTION = "html-templates";
+
+    /** one response per source so we can generate a template before the actual response arrives */
+    static final String SAMPLES_COLLECTION = "response-samples";
+
+    /** how long we keep sample responses */
+    private static final long SAMPLE_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** prefix of websocket messages with the data that the streamed HTML renders */
+    public static final String JSON_DATA_MESSAGE = "###STREAM_DATA###";
+
+    /** prefix of websocket messages with a chunk of HTML that the LLM is generating */
+    public static final String HTML_CHUNK_MESSAGE = "###HTML_CHUNK###";
+
+    /** whether LLM generated HTML is streamed to the websocket while it is generated */
+    private final boolean streaming;
 
     private final String htmlRenderingPrompt;
 
+    /** maximum size of the API response summary that we send to the LLM */
+    private final int renderingMaxTokens;
+
+    /** source => template generation that is currently running */
+    private final SingleFlight<String, CompiledTemplate> templateFlights = new SingleFlight<>();
+
+    /** source => compiled LLM template */
+    private final Map<String, CompiledTemplate> compiledTemplates = new ConcurrentHashMap<>();
+
+    /** source => number of renders with the current LLM template */
+    private final Map<String, AtomicInteger> renderCounts = new ConcurrentHashMap<>();
+
+    /** the hand-crafted and permanent templates */
+    private final TemplateRegistry templateRegistry;
+
+    /** LLM templates become permanent after this many renders, 0 to never promote them automatically */
+    private final int promoteAfterRenders;
+
+    /** how long a template is still used while a new one is generated after it should have been revalidated */
+    private final long staleMillis;
+
+    /** whether templates are prepared while the API is still being called */
+    private final boolean speculative;
+
+    /** the sources we stored a sample response for since the start */
+    private final Set<String> sampledSources = ConcurrentHashMap.newKeySet();
+
     static class SingletonHolder {
         static HtmlRenderer instance = new HtmlRenderer();
     }
@@ -37,135 +79,378 @@ public class HtmlRenderer {
         return SingletonHolder.instance;
     }
 
+    /**
+     * A template and the data that goes into it.
+     */
+    public static class Rendering {
+        private final String source;
+        private final CompiledTemplate template;
+        private final String json;
+
+        private Rendering(String source, CompiledTemplate template, String json) {
+            this.source = source;
+            this.template = template;
+            this.json = json;
+        }
+
+        /**
+         * @return The id clients cache the template under: the source or, if the response has none, the hash of the template.
+         */
+        public String getTemplateId() {
+            return source != null ? source : template.getHash();
+        }
+
+        public CompiledTemplate getTemplate() {
+            return template;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public String toHtml() {
+            return template.render(json);
+        }
+    }
+
     private HtmlRenderer() {
         caching = ConfigHolder.getInstance().getConfig().getBoolean("caching.html", false);
+        streaming = ConfigHolder.getInstance().getConfig().getBoolean("rendering.streaming", true);
+        templateRegistry = new TemplateRegistry(ConfigHolder.getInstance().getConfig().getString("rendering.templates.directory", "data/html-templates"),
+                ConfigHolder.getInstance().getConfig().getBoolean("rendering.templates.watch", false));
+        promoteAfterRenders = ConfigHolder.getInstance().getConfig().getInt("rendering.templates.promote_after_renders", 0);
+        renderingMaxTokens = ConfigHolder.getInstance().getConfig().getInt("prompt.rendering.max_tokens", 1000);
+        speculative = ConfigHolder.getInstance().getConfig().getBoolean("rendering.speculative", true);
+        staleMillis = TimeUnit.HOURS.toMillis(ConfigHolder.getInstance().getConfig().getLong("caching.stale_hours", 24));
 
         if (caching) {
-            jsonDatabase = new JsonDatabase("data", 1000);
-            jsonDatabase.createIndex(TEMPLATES_COLLECTION, "source");
+            cacheStore = CacheStore.getInstance();
         } else {
-            jsonDatabase = null;
+            cacheStore = null;
         }
 
         ClassLoader classLoader = getClass().getClassLoader();
         htmlRenderingPrompt = FileHelper.readFileToString(classLoader.getResourceAsStream("html-render-prompt.txt"));
     }
 
-    private String getHandCraftedHtmlTemplate(JsonObject apiResponse) {
-        String source = apiResponse.tryGetString("source");
-        if (source == null) {
+    /**
+     * Turn the source URL into the template name: remove the protocol and turn / into _.
+     */
+    static String toTemplateName(String source) {
+        if (source.startsWith("https://")) {
+            source = source.substring(8);
+        } else if (source.startsWith("http://")) {
+            source = source.substring(7);
+        }
+        return source.replace('/', '_');
+    }
+
+    /**
+     * Find a compiled LLM template in memory or in the database.
+     */
+    private CompiledTemplate getCachedTemplate(String source) {
+        return getCachedTemplate(source, false);
+    }
+
+    /**
+     * @param recordLookup Whether the lookup is counted in the metrics, only lookups for rendering should be.
+     */
+    private CompiledTemplate getCachedTemplate(String source, boolean recordLookup) {
+        if (!caching || source == null) {
             return null;
         }
-        // remove protocol and turn / into _ for file search
-        source = source.replaceAll("https?://", "").replace("/", "_");
-        ClassLoader classLoader = getClass().getClassLoader();
-        InputStream resourceAsStream = classLoader.getResourceAsStream("html-templates/" + source + ".html");
-        if (resourceAsStream == null) {
-            return null; // no hand-crafted template found
+        long now = System.currentTimeMillis();
+        CompiledTemplate template = compiledTemplates.get(source);
+        if (template != null) {
+            if (!template.isExpired(now)) {
+                if (recordLookup) {
+                    Metrics.getInstance().increment(Metrics.TEMPLATE_LOOKUPS, "tier", "memory");
+                }
+                return template;
+            }
+            compiledTemplates.remove(source, template);
+        }
+
+        JsonObject templateJson = cacheStore.get(TEMPLATES_COLLECTION, source);
+        if (templateJson == null) {
+            if (recordLookup) {
+                Metrics.getInstance().increment(Metrics.TEMPLATE_LOOKUPS, "tier", "miss");
+            }
+            return null;
+        }
+        if (recordLookup) {
+            Metrics.getInstance().increment(Metrics.TEMPLATE_LOOKUPS, "tier", "store");
+        }
+        long expires = templateJson.tryGetLong("expires", 0L);
+        long revalidate = templateJson.tryGetLong("revalidate", expires);
+        String compiledHtml = templateJson.tryGetString("template");
+        if (compiledHtml != null) {
+            template = CompiledTemplate.compile(compiledHtml, revalidate, expires);
+        } else {
+            // entries from before templates were compiled only have the raw LLM response
+            template = CompiledTemplate.compileLlmResponse(templateJson.tryGetString("html"), revalidate, expires);
+        }
+        LOGGER.info("found HTML template in database: " + StringHelper.shortenEllipsis(template.getHtml(), 100));
+        compiledTemplates.put(source, template);
+        return template;
+    }
+
+    /**
+     * Get the template for the source ready while the API is still being called: load it from the database or, if there is none, start
+     * generating it from a sample response of an earlier call. {@link #renderHtml(JsonObject, Progress)} then finds the template in memory or
+     * joins the running generation.
+     */
+    public void prepareTemplate(String source) {
+        if (!speculative || !caching || source == null || templateRegistry.get(source) != null || getCachedTemplate(source) != null) {
+            return;
+        }
+        JsonObject sample = cacheStore.get(SAMPLES_COLLECTION, source);
+        if (sample == null) {
+            return;
+        }
+        LOGGER.info("generating HTML template for " + source + " from a sample response");
+        // nobody follows this progress, the sessions attach once the actual response is rendered
+        templateFlights.execute(source, new Progress(), flightProgress -> {
+            try {
+                return CompletableFuture.completedFuture(compileHtmlTemplate(source, generateHtmlTemplate(sample, flightProgress)));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * Keep one response per source so the template can be generated early next time, see {@link #prepareTemplate(String)}.
+     */
+    private void storeSample(String source, String json) {
+        if (!speculative || !caching || !sampledSources.add(source)) {
+            return;
+        }
+        JsonObject sample = JsonObject.tryParse(json);
+        if (sample != null) {
+            sample.put("expires", System.currentTimeMillis() + SAMPLE_TTL_MILLIS);
+            cacheStore.put(SAMPLES_COLLECTION, source, sample);
         }
-        return FileHelper.readFileToString(resourceAsStream);
     }
 
     public String renderHtml(JsonObject apiResponse) throws Exception {
-        return renderHtml(apiResponse, null);
+        return renderHtml(apiResponse, new Progress());
     }
 
     public String renderHtml(JsonObject apiResponse, Session session) throws Exception {
+        return renderHtml(apiResponse, new Progress(session));
+    }
+
+    public String renderHtml(JsonObject apiResponse, Progress progress) throws Exception {
+        Rendering rendering = render(apiResponse, progress);
+        return rendering != null ? rendering.toHtml() : null;
+    }
+
+    /**
+     * @return True if the response can be rendered with a hand-crafted or a fresh cached template, without calling the LLM.
+     */
+    public boolean hasFreshTemplate(JsonObject apiResponse) {
+        String source = apiResponse.tryGetString("source");
+        if (templateRegistry.get(source) != null) {
+            return true;
+        }
+        CompiledTemplate template = getCachedTemplate(source);
+        return template != null && !template.isStale(System.currentTimeMillis());
+    }
+
+    /**
+     * Find or generate the template for the response without putting the data into it yet, clients that bind the data themselves get the
+     * template and the data separately.
+     *
+     * @return The template and the data or null if there is no response.
+     */
+    public Rendering render(JsonObject apiResponse, Progress progress) throws Exception {
         if (apiResponse == null) {
             return null;
         }
+        String source = apiResponse.tryGetString("source");
+        // serialize the response only once, it goes into the template and maybe the stream
+        String json = apiResponse.toString();
+
         // first check whether we have a hand-crafted HTML template for this response
-        String handCraftedHtmlTemplate = getHandCraftedHtmlTemplate(apiResponse);
+        CompiledTemplate handCraftedHtmlTemplate = templateRegistry.get(source);
         if (handCraftedHtmlTemplate != null) {
-            if (session != null) {
-                session.getRemote().sendString("found hand-crafted HTML template");
-            }
-            // put data into template
-            handCraftedHtmlTemplate = handCraftedHtmlTemplate.replace("###JSON_DATA###", apiResponse.toString());
-            return handCraftedHtmlTemplate;
+            Metrics.getInstance().increment(Metrics.TEMPLATE_LOOKUPS, "tier", "hand_crafted");
+            progress.send("found hand-crafted HTML template");
+            return new Rendering(source, handCraftedHtmlTemplate, json);
         }
 
-        // if not hand-crafted, try to find a cached template
-        JsonObject templateJson = null;
-
-        if (caching) {
-            templateJson = jsonDatabase.getOne(TEMPLATES_COLLECTION, "source", apiResponse.tryGetString("source"));
+        // keep a sample before the template is generated, so a source whose template failed, expired or was evicted can be prepared early
+        if (source != null) {
+            storeSample(source, json);
         }
 
-        String htmlResponse;
-        if (templateJson != null && templateJson.tryGetLong("expires", 0L) > System.currentTimeMillis()) {
-            htmlResponse = templateJson.tryGetString("html");
-            LOGGER.info("found HTML template in database: " + StringHelper.shortenEllipsis(htmlResponse, 100));
-            if (session != null) {
-                session.getRemote().sendString("found cached HTML template");
+        // if not hand-crafted, try to find a cached template
+        CompiledTemplate template = getCachedTemplate(source, true);
+        if (template != null) {
+            progress.send("found cached HTML template");
+            if (template.isStale(System.currentTimeMillis())) {
+                // use the stale template this time but get a new one for the next users
+                CacheWarmer.getInstance().revalidateTemplate(apiResponse);
             }
         } else {
-            // if we don't have a template, we ask the LLM to render HTML
-            JsonArray messages = new JsonArray();
-
-            JsonObject systemMessage = new JsonObject();
-            systemMessage.put("role", "system");
-            systemMessage.put("content", "We have the following API response:\n\n" + simplify(apiResponse));
-            messages.add(systemMessage);
-
-            JsonObject userMessage = new JsonObject();
-            userMessage.put("role", "user");
-            userMessage.put("content", htmlRenderingPrompt);
-            messages.add(userMessage);
-
-            if (session != null) {
-                session.getRemote().sendString("asking LLM to render HTML");
+            if (streaming && progress.isFollowed()) {
+                // the frontend can render the HTML chunks while they come in if it has the data already
+                progress.send(JSON_DATA_MESSAGE + json);
             }
-            htmlResponse = LargeLanguageModelApi.getInstance().chat(messages, 0., new AtomicInteger(), 4095);
-            if (session != null) {
-                session.getRemote().sendString("✔");
+            if (source == null) {
+                template = CompiledTemplate.compileLlmResponse(generateHtmlTemplate(apiResponse, progress), 0L);
+            } else {
+                // many users might ask for the same new source at once, only one of them should make the LLM call
+                template = templateFlights.execute(source, progress, flightProgress -> {
+                    try {
+                        return CompletableFuture.completedFuture(compileHtmlTemplate(source, generateHtmlTemplate(apiResponse, flightProgress)));
+                    } catch (Exception e) {
+                        return CompletableFuture.failedFuture(e);
+                    }
+                }).get();
             }
-            LOGGER.info("LLM returned HTML: " + StringHelper.shortenEllipsis(htmlResponse.toString(), 100));
-            LOGGER.debug("LLM returned HTML: " + htmlResponse);
+        }
 
-            JsonObject template = new JsonObject();
-            template.put("html", htmlResponse);
-            template.put("source", apiResponse.tryGetString("source"));
-            if (caching) {
-                template.put("expires", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(ConfigHolder.getInstance().getConfig().getInt("caching.duration_hours")));
-                jsonDatabase.add(TEMPLATES_COLLECTION, template);
-            }
+        if (source != null && !template.isPermanent() && template.isValid()) {
+            countRender(source, template);
         }
 
-        String html = StringHelper.getSubstringBetween(htmlResponse, "```html", "```");
-        if (html.isEmpty()) {
-            html = htmlResponse;
+        return new Rendering(source, template, json);
+    }
+
+    /**
+     * Compile the LLM response into a template and cache it if it is valid.
+     */
+    private CompiledTemplate compileHtmlTemplate(String source, String htmlResponse) {
+        long revalidate = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(ConfigHolder.getInstance().getConfig().getInt("caching.duration_hours"));
+        long expires = revalidate + staleMillis;
+        CompiledTemplate template = CompiledTemplate.compileLlmResponse(htmlResponse, revalidate, expires);
+        if (!template.isValid()) {
+            LOGGER.warn("LLM template for " + source + " has no Vue app or no place for the data, not caching it");
+            return template;
+        }
+        if (caching) {
+            JsonObject templateJson = new JsonObject();
+            templateJson.put("source", source);
+            templateJson.put("template", template.getHtml());
+            templateJson.put("revalidate", revalidate);
+            templateJson.put("expires", expires);
+            cacheStore.put(TEMPLATES_COLLECTION, source, templateJson);
+            compiledTemplates.put(source, template);
         }
+        return template;
+    }
 
-        // replace response section with actual response
-        html = PatternHelper.compileOrGet("<script>.*</script>", Pattern.DOTALL).matcher(html).replaceAll("");
-        html = html.replace("</body>",
-                "<script>\n" + "const app = Vue.createApp({\n" + "  data() {\n" + "    return {\n" + "      jsonData: {},\n" + "    };\n" + "  },\n" + "  mounted() {\n"
-                        + "    this.jsonData=" + apiResponse + ";\n" + "  },\n" + "}).mount('#app');\n" + "</script></body>");
+    /**
+     * Generate a new template for the source of the response if there is none or if it is stale within the given time. Blocks until the
+     * template is generated.
+     */
+    public void revalidateTemplate(JsonObject apiResponse, long refreshAheadMillis) throws Exception {
+        String source = apiResponse.tryGetString("source");
+        if (!caching || source == null || templateRegistry.get(source) != null) {
+            return;
+        }
+        CompiledTemplate template = getCachedTemplate(source);
+        if (template != null && !template.isStale(System.currentTimeMillis() + refreshAheadMillis)) {
+            return;
+        }
+        LOGGER.info("revalidating HTML template for " + source);
+        templateFlights.execute(source, new Progress(), flightProgress -> {
+            try {
+                return CompletableFuture.completedFuture(compileHtmlTemplate(source, generateHtmlTemplate(apiResponse, flightProgress)));
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }).get();
+    }
 
-        // close gap between </div> and <script> so we can parse it easier in frontend
-        html = PatternHelper.compileOrGet("</div>[ \n\t\r]*?<script>", Pattern.DOTALL).matcher(html).replaceAll("</div><script>");
+    /**
+     * Templates that are used often enough are promoted to permanent ones.
+     */
+    private void countRender(String source, CompiledTemplate template) {
+        if (promoteAfterRenders <= 0) {
+            return;
+        }
+        int renders = renderCounts.computeIfAbsent(source, k -> new AtomicInteger()).incrementAndGet();
+        if (renders == promoteAfterRenders) {
+            promoteTemplate(source, template);
+        }
+    }
 
-        return html;
+    /**
+     * Make the current LLM template for the source permanent. It is stored in the template directory next to the hand-crafted templates and
+     * never expires.
+     *
+     * @return True if there was a template to promote.
+     */
+    public boolean promoteTemplate(String source) {
+        CompiledTemplate template = getCachedTemplate(source);
+        if (template == null || !template.isValid()) {
+            return false;
+        }
+        promoteTemplate(source, template);
+        return true;
+    }
+
+    private void promoteTemplate(String source, CompiledTemplate template) {
+        if (templateRegistry.add(source, template)) {
+            compiledTemplates.remove(source);
+            renderCounts.remove(source);
+            LOGGER.info("promoted HTML template for " + source);
+        }
     }
 
     /**
-     * Simplify the API response to make it shorter since we send it to the LLM and it costs tokens.
+     * Ask the LLM to render HTML for the API response.
      */
-    private String simplify(JsonObject apiResponse) {
-        // shorten all arrays on the root level to max 5 elements
-        for (String key : apiResponse.keySet()) {
-            if (apiResponse.tryGetJsonArray(key) != null) {
-                JsonArray array = apiResponse.tryGetJsonArray(key);
-                if (array.size() > 5) {
-                    JsonArray newArray = new JsonArray();
-                    for (int i = 0; i < 5; i++) {
-                        newArray.add(array.get(i));
-                    }
-                    apiResponse.put(key, newArray);
+    private String generateHtmlTemplate(JsonObject apiResponse, Progress progress) throws Exception {
+        JsonArray messages = new JsonArray();
+
+        // the instructions are the same for every response so they go first, that way the LLM provider can cache them
+        JsonObject systemMessage = new JsonObject();
+        systemMessage.put("role", "system");
+        systemMessage.put("content", htmlRenderingPrompt);
+        messages.add(systemMessage);
+
+        JsonObject userMessage = new JsonObject();
+        userMessage.put("role", "user");
+        userMessage.put("content", "The API response has the following fields (type and a sample value), arrays are described by their first element:\n\n"
+                + PromptBuilder.summarize(apiResponse, renderingMaxTokens));
+        messages.add(userMessage);
+
+        progress.send("asking LLM to render HTML");
+        AtomicInteger usedTokens = progress.getUsedTokens();
+        int tokensBefore = usedTokens.get();
+        String htmlResponse;
+        if (streaming && progress.isFollowed()) {
+            // send the HTML as it is generated, the mount script is added by the frontend since it has the data already
+            HtmlStreamTransformer transformer = new HtmlStreamTransformer(null);
+            htmlResponse = LargeLanguageModelApi.getInstance().chatStream(messages, 0., usedTokens, 4095, chunk -> {
+                String html = transformer.accept(chunk);
+                if (!html.isEmpty()) {
+                    progress.send(HTML_CHUNK_MESSAGE + html);
                 }
+            });
+            String html = transformer.finish();
+            if (!html.isEmpty()) {
+                progress.send(HTML_CHUNK_MESSAGE + html);
             }
+        } else {
+            htmlResponse = LargeLanguageModelApi.getInstance().chat(LargeLanguageModelApi.RENDERING, messages, 0., usedTokens, 4095);
+        }
+        progress.send("✔");
+        LOGGER.info("rendering used " + (usedTokens.get() - tokensBefore) + " tokens");
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("LLM returned HTML: " + htmlResponse);
+        } else {
+            LOGGER.info("LLM returned HTML: " + StringHelper.shortenEllipsis(htmlResponse, 100));
         }
-        return apiResponse.toString();
+
+        return htmlResponse;
+    }
+
+    public TemplateRegistry getTemplateRegistry() {
+        return templateRegistry;
     }
 }
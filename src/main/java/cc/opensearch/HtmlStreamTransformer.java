@@ -0,0 +1,207 @@
+package cc.opensearch;
+
+/**
+ * Post-processes the HTML the LLM writes while it is still being generated. It takes the content of a ```html fence if there is one, removes
+ * &lt;script&gt; blocks, inserts a snippet before &lt;/body&gt; and closes the gap between &lt;/div&gt; and that snippet so the frontend can parse it
+ * easier. Only as much input as necessary to make these decisions is held back, everything else is returned right away.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class HtmlStreamTransformer {
+    private static final String FENCE_START = "```html";
+    private static final String FENCE = "```";
+    private static final String SCRIPT_START = "<script>";
+    private static final String SCRIPT_END = "</script>";
+    private static final String BODY_END = "</body>";
+    private static final String DIV_END = "</div>";
+    private static final String[] TAGS = {SCRIPT_START, BODY_END, DIV_END};
+
+    private enum FenceState {
+        /** we don't know yet whether the HTML is in a fence */
+        UNDECIDED,
+        /** we are inside the ```html fence */
+        FENCED,
+        /** there is no fence, everything is HTML */
+        PLAIN,
+        /** the fence was closed, everything after it is ignored */
+        CLOSED
+    }
+
+    /** inserted before the closing body tag, e.g. the script that mounts the Vue app */
+    private final String bodyEndInsertion;
+
+    private FenceState fenceState = FenceState.UNDECIDED;
+
+    /** input that was not checked for the fence yet */
+    private final StringBuilder raw = new StringBuilder();
+
+    /** HTML that was not transformed yet */
+    private final StringBuilder content = new StringBuilder();
+
+    /** whitespace after a closing div which we drop if the body end follows */
+    private final StringBuilder heldWhitespace = new StringBuilder();
+
+    private boolean afterDiv = false;
+    private boolean inScript = false;
+
+    public HtmlStreamTransformer(String bodyEndInsertion) {
+        this.bodyEndInsertion = bodyEndInsertion == null ? "" : bodyEndInsertion;
+    }
+
+    /**
+     * Transform a complete LLM response at once.
+     */
+    public static String transform(String htmlResponse, String bodyEndInsertion) {
+        HtmlStreamTransformer transformer = new HtmlStreamTransformer(bodyEndInsertion);
+        return transformer.accept(htmlResponse) + transformer.finish();
+    }
+
+    /**
+     * Feed the next chunk of the LLM response.
+     *
+     * @return The transformed HTML that is ready to be sent, can be empty.
+     */
+    public String accept(CharSequence chunk) {
+        raw.append(chunk);
+        resolveFence(false);
+        return transform(false);
+    }
+
+    /**
+     * Signal that the LLM response is complete.
+     *
+     * @return The rest of the transformed HTML.
+     */
+    public String finish() {
+        resolveFence(true);
+        return transform(true);
+    }
+
+    private void resolveFence(boolean end) {
+        if (fenceState == FenceState.UNDECIDED) {
+            int fenceStart = raw.indexOf(FENCE_START);
+            int tagStart = raw.indexOf("<");
+            int tickStart = raw.indexOf("`");
+            if (fenceStart >= 0) {
+                raw.delete(0, fenceStart + FENCE_START.length());
+                fenceState = FenceState.FENCED;
+            } else if (end || (tagStart >= 0 && (tickStart < 0 || tickStart > tagStart))) {
+                fenceState = FenceState.PLAIN;
+            } else {
+                return;
+            }
+        }
+
+        switch (fenceState) {
+            case PLAIN:
+                content.append(raw);
+                raw.setLength(0);
+                break;
+            case FENCED:
+                int fenceEnd = raw.indexOf(FENCE);
+                if (fenceEnd >= 0) {
+                    content.append(raw, 0, fenceEnd);
+                    raw.setLength(0);
+                    fenceState = FenceState.CLOSED;
+                } else {
+                    // the end of the input might be the start of the closing fence
+                    int keep = end ? 0 : Math.min(FENCE.length() - 1, raw.length());
+                    content.append(raw, 0, raw.length() - keep);
+                    raw.delete(0, raw.length() - keep);
+                }
+                break;
+            default:
+                raw.setLength(0);
+        }
+    }
+
+    private String transform(boolean end) {
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+        while (i < content.length()) {
+            if (inScript) {
+                int scriptEnd = content.indexOf(SCRIPT_END, i);
+                if (scriptEnd < 0) {
+                    // drop the script but keep what could be the start of the closing tag
+                    i = end ? content.length() : Math.max(i, content.length() - SCRIPT_END.length() + 1);
+                    break;
+                }
+                i = scriptEnd + SCRIPT_END.length();
+                inScript = false;
+                continue;
+            }
+
+            char c = content.charAt(i);
+            if (afterDiv && Character.isWhitespace(c)) {
+                heldWhitespace.append(c);
+                i++;
+                continue;
+            }
+
+            if (c == '<') {
+                String tag = null;
+                boolean incomplete = false;
+                for (String candidate : TAGS) {
+                    if (content.length() - i >= candidate.length()) {
+                        if (regionMatches(content, i, candidate)) {
+                            tag = candidate;
+                            break;
+                        }
+                    } else if (!end && candidate.startsWith(content.substring(i))) {
+                        incomplete = true;
+                    }
+                }
+                if (tag == null && incomplete) {
+                    // wait for more input to know which tag this is
+                    break;
+                }
+                if (SCRIPT_START.equals(tag)) {
+                    inScript = true;
+                    i += SCRIPT_START.length();
+                    continue;
+                }
+                if (BODY_END.equals(tag)) {
+                    if (bodyEndInsertion.isEmpty()) {
+                        out.append(heldWhitespace);
+                    }
+                    heldWhitespace.setLength(0);
+                    afterDiv = false;
+                    out.append(bodyEndInsertion).append(BODY_END);
+                    i += BODY_END.length();
+                    continue;
+                }
+                if (DIV_END.equals(tag)) {
+                    out.append(heldWhitespace).append(DIV_END);
+                    heldWhitespace.setLength(0);
+                    afterDiv = true;
+                    i += DIV_END.length();
+                    continue;
+                }
+            }
+
+            out.append(heldWhitespace).append(c);
+            heldWhitespace.setLength(0);
+            afterDiv = false;
+            i++;
+        }
+        content.delete(0, i);
+
+        if (end) {
+            out.append(heldWhitespace);
+            heldWhitespace.setLength(0);
+            content.setLength(0);
+        }
+
+        return out.toString();
+    }
+
+    private static boolean regionMatches(CharSequence text, int offset, String candidate) {
+        for (int j = 0; j < candidate.length(); j++) {
+            if (text.charAt(offset + j) != candidate.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,147 @@
+package cc.opensearch;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * HTTP caching semantics for what we serve: strong ETags from content hashes, conditional requests and Cache-Control headers that follow the
+ * "revalidate" and "expires" fields of the cached responses and templates, so browsers and CDNs can answer repeat requests without us.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public final class HttpCaching {
+    private static final long YEAR_SECONDS = 365L * 24 * 60 * 60;
+
+    private HttpCaching() {
+    }
+
+    /**
+     * @return A strong ETag of the content, a hash so equal content gets the same tag on every server.
+     */
+    public static String etag(ByteBuffer content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.duplicate());
+            // 128 bits are plenty to tell versions apart
+            byte[] hash = digest.digest();
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has SHA-256", e);
+        }
+    }
+
+    public static String etag(String content) {
+        return etag(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return The ETag of the content in another encoding, e.g. gzip. Strong ETags must differ between encodings of the same content.
+     */
+    public static String etag(String identityEtag, String encoding) {
+        if (encoding == null || encoding.equals("identity")) {
+            return identityEtag;
+        }
+        return identityEtag.substring(0, identityEtag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch The If-None-Match header, may be null.
+     * @return True if the client has the content with the ETag (in any encoding) already and gets a 304.
+     */
+    public static boolean isNotModified(String ifNoneMatch, String identityEtag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        // all encodings share the identity ETag without its closing quote
+        String prefix = identityEtag.substring(0, identityEtag.length() - 1);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // If-None-Match uses the weak comparison
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(identityEtag) || tag.startsWith(prefix + "-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ifModifiedSince The If-Modified-Since header, may be null. Only used if the request has no If-None-Match header.
+     * @return True if the content was not modified since the date the client sent.
+     */
+    public static boolean isNotModifiedSince(String ifModifiedSince, long lastModified) {
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        try {
+            long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            // HTTP dates only have seconds
+            return lastModified / 1000 <= since / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    public static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * @param revalidate When the content should be fetched again.
+     * @param expires When the content must not be used anymore, the time in between it may be served stale while it is refreshed.
+     * @return The Cache-Control header, "no-store" if the content must not be cached at all.
+     */
+    public static String cacheControl(long revalidate, long expires, long now) {
+        if (expires <= now) {
+            return "no-store";
+        }
+        if (revalidate == Long.MAX_VALUE) {
+            // permanent content, a year is the longest caches keep anything
+            return "public, max-age=" + YEAR_SECONDS + ", immutable";
+        }
+        long maxAgeSeconds = Math.max(0, Math.min(revalidate, expires) - now) / 1000;
+        long staleSeconds = Math.min(YEAR_SECONDS, (expires - Math.max(revalidate, now)) / 1000);
+        if (staleSeconds <= 0) {
+            return "public, max-age=" + maxAgeSeconds;
+        }
+        return "public, max-age=" + maxAgeSeconds + ", stale-while-revalidate=" + staleSeconds;
+    }
+
+    /**
+     * @param acceptEncoding The Accept-Encoding header, may be null.
+     * @return True if the client accepts the encoding, e.g. "gzip".
+     */
+    public static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String part : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+            String[] tokens = part.split(";");
+            String name = tokens[0].trim();
+            if (!name.equals(encoding) && !name.equals("*")) {
+                continue;
+            }
+            // q=0 means the client explicitly does not want it
+            for (int i = 1; i < tokens.length; i++) {
+                String parameter = tokens[i].trim();
+                if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -1,21 +1,96 @@
 package cc.opensearch;
 
+import org.apache.commons.configuration.Configuration;
 import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.helper.UrlHelper;
 import ws.palladian.helper.io.FileHelper;
 import ws.palladian.persistence.json.JsonArray;
 import ws.palladian.persistence.json.JsonObject;
-import ws.palladian.retrieval.DocumentRetriever;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Automatically generate a list of API endpoints.
+ * Automatically generate a list of API endpoints. All GET endpoints are probed concurrently, with a limit of concurrent requests per host and a
+ * pause between them. Every result is appended to a health log right away so a rerun only probes endpoints that failed or were not checked for
+ * a while. The measured latencies and health are written back to apis.json so the router can prefer fast and healthy APIs.
  *
  * @author David Urbansky
  * @since 21.12.2023 at 16:26
  **/
 public class ImportEndpoints {
-    public void generate() {
-        // collect a simplified description of the available API endpoints
-        StringBuilder apiEndpoints = new StringBuilder();
+    private static final Logger LOGGER = Logger.getLogger(ImportEndpoints.class);
+
+    private final Duration timeout;
+
+    /** maximum number of endpoints that are probed at the same time */
+    private final int maxConcurrentProbes;
+
+    /** maximum number of concurrent probes per host */
+    private final int maxProbesPerHost;
+
+    /** pause between two probes of the same host */
+    private final long hostDelayMillis;
+
+    /** healthy endpoints are probed again after this time, failed ones on every run */
+    private final long recheckMillis;
+
+    /** we don't need to read more of a response to know that the endpoint works */
+    private final long maxBytes;
+
+    /** one JSON object per line and probe, the last line of an URL wins */
+    private final Path healthLogPath;
+
+    /** the apis.json that gets the latencies and health of its domains */
+    private final String apisPath;
+
+    /** url => latest probe result */
+    private final Map<String, JsonObject> health = new ConcurrentHashMap<>();
+
+    /** host => when the last probe of the host started */
+    private final Map<String, Long> hostLastProbe = new ConcurrentHashMap<>();
+
+    public ImportEndpoints() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        timeout = Duration.ofSeconds(config.getLong("import.timeout_seconds", 10));
+        maxConcurrentProbes = config.getInt("import.max_concurrent_probes", 64);
+        maxProbesPerHost = config.getInt("import.max_probes_per_host", 2);
+        hostDelayMillis = config.getLong("import.host_delay_millis", 200);
+        recheckMillis = TimeUnit.HOURS.toMillis(config.getLong("import.recheck_hours", 24));
+        maxBytes = config.getLong("import.max_bytes", 1024 * 1024);
+        healthLogPath = Paths.get(config.getString("import.health_log_path", "data/endpoint-health.jsonl"));
+        apisPath = config.getString("import.apis_path", "src/main/resources/apis.json");
+    }
+
+    public void generate() throws InterruptedException {
+        loadHealthLog();
+        Set<String> domainsWithoutKey = addAuthentication();
+
+        // collect a simplified description of the available API endpoints, url => description
+        Map<String, String> endpoints = new LinkedHashMap<>();
 
         String apisString = FileHelper.tryReadFileToString("data/public-rest-apis.json");
         JsonObject apiDefinitions = JsonObject.tryParse(apisString);
@@ -24,7 +99,7 @@ public class ImportEndpoints {
             JsonObject categoryJson = categories.tryGetJsonObject(i);
             JsonArray apiJsons = categoryJson.tryQueryJsonArray("item[0]/item");
             if (apiJsons == null) {
-                apiJsons = categoryJson.tryGetJsonArray("item");;
+                apiJsons = categoryJson.tryGetJsonArray("item");
             }
             for (int j = 0; j < apiJsons.size(); j++) {
                 JsonObject apiJson = apiJsons.tryGetJsonObject(j);
@@ -41,15 +116,7 @@ public class ImportEndpoints {
 
                 // get the request URL
                 String url = requestJson.tryQueryString("url/raw");
-
-                // make a request to see whether it is still working
-                try {
-                    String response = new DocumentRetriever().getText(url);
-                    if (response == null || response.isEmpty()) {
-                        Logger.getRootLogger().error("API endpoint " + url + " is not working");
-                        continue;
-                    }
-                } catch (Exception e) {
+                if (url == null) {
                     continue;
                 }
 
@@ -59,19 +126,263 @@ public class ImportEndpoints {
 //                    queryParameters.tryGetJsonObject(k);
 //                }
 
-                String description = requestJson.tryGetString("description");
-                description = description.replaceAll("\n.*", "");
-                apiEndpoints.append(description).append("\n");
-                apiEndpoints.append(url).append("\n");
-
-                apiEndpoints.append("\n");
+                String description = Optional.ofNullable(requestJson.tryGetString("description")).orElse("");
+                endpoints.put(url, description.replaceAll("\n.*", ""));
             }
         }
 
+        probe(endpoints, domainsWithoutKey);
+
+        // the list only contains endpoints that are working
+        StringBuilder apiEndpoints = new StringBuilder();
+        for (Map.Entry<String, String> endpoint : endpoints.entrySet()) {
+            JsonObject probeJson = health.get(endpoint.getKey());
+            if (probeJson == null || !Boolean.TRUE.equals(probeJson.tryGetBoolean("healthy"))) {
+                continue;
+            }
+            apiEndpoints.append(endpoint.getValue()).append("\n");
+            apiEndpoints.append(endpoint.getKey()).append("\n");
+            apiEndpoints.append("\n");
+        }
         FileHelper.writeToFile("data/api-endpoints.txt", apiEndpoints.toString());
+
+        updateApis(endpoints);
+    }
+
+    /**
+     * The probes need the same keys as the searches, otherwise every API that needs one is rejected.
+     *
+     * @return The domains of the APIs that need a key that is not configured.
+     */
+    private Set<String> addAuthentication() {
+        Set<String> domainsWithoutKey = new HashSet<>();
+        JsonArray apis = JsonArray.tryParse(FileHelper.tryReadFileToString(apisPath));
+        if (apis == null) {
+            return domainsWithoutKey;
+        }
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        for (int i = 0; i < apis.size(); i++) {
+            JsonObject apiJson = apis.tryGetJsonObject(i);
+            String authenticationConfigKey = Optional.ofNullable(apiJson.tryGetString("authentication_config_key")).orElse("");
+            if (!authenticationConfigKey.isEmpty() && !UpstreamClient.getInstance().addAuthentication(config, authenticationConfigKey)) {
+                domainsWithoutKey.add(getHost(apiJson.tryGetString("url")));
+            }
+        }
+        return domainsWithoutKey;
+    }
+
+    /**
+     * Probe all endpoints that were not checked recently or failed the last time. Endpoints we have no key for are skipped.
+     */
+    private void probe(Map<String, String> endpoints, Set<String> domainsWithoutKey) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<String> urls = new ArrayList<>();
+        for (String url : endpoints.keySet()) {
+            if (domainsWithoutKey.contains(getHost(url))) {
+                continue;
+            }
+            JsonObject probeJson = health.get(url);
+            if (probeJson == null || !Boolean.TRUE.equals(probeJson.tryGetBoolean("healthy")) || probeJson.tryGetLong("checked", 0L) + recheckMillis < now) {
+                urls.add(url);
+            }
+        }
+        LOGGER.info("probing " + urls.size() + " of " + endpoints.size() + " endpoints");
+
+        // every host has its own queue that is worked off by at most maxProbesPerHost workers, so a host with many endpoints doesn't block the others
+        Map<String, Queue<String>> hostQueues = new LinkedHashMap<>();
+        for (String url : urls) {
+            hostQueues.computeIfAbsent(getHost(url), k -> new ConcurrentLinkedQueue<>()).add(url);
+        }
+
+        Semaphore concurrentProbes = new Semaphore(maxConcurrentProbes);
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService executor = createExecutor();
+        try {
+            for (Map.Entry<String, Queue<String>> hostQueue : hostQueues.entrySet()) {
+                Queue<String> queue = hostQueue.getValue();
+                int workers = Math.min(maxProbesPerHost, queue.size());
+                for (int i = 0; i < workers; i++) {
+                    executor.execute(() -> {
+                        String url;
+                        while ((url = queue.poll()) != null) {
+                            try {
+                                probe(url, hostQueue.getKey(), endpoints.get(url), queue, concurrentProbes);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            } catch (Exception e) {
+                                LOGGER.error("could not probe " + url, e);
+                            } finally {
+                                int count = done.incrementAndGet();
+                                if (count % 100 == 0) {
+                                    LOGGER.info("probed " + count + " of " + urls.size() + " endpoints");
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.HOURS);
+        }
+    }
+
+    private static String getHost(String url) {
+        return Optional.ofNullable(UrlHelper.getDomain(url, false, false)).orElse("");
+    }
+
+    /**
+     * The global limit is only held during the request, never while waiting for the host.
+     */
+    private void probe(String url, String host, String description, Object hostLock, Semaphore concurrentProbes) throws InterruptedException {
+        // be polite, don't hit the same host in quick succession
+        long wait;
+        synchronized (hostLock) {
+            long last = hostLastProbe.getOrDefault(host, 0L);
+            long next = Math.max(System.currentTimeMillis(), last + hostDelayMillis);
+            hostLastProbe.put(host, next);
+            wait = next - System.currentTimeMillis();
+        }
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        UpstreamClient.Probe probe;
+        concurrentProbes.acquire();
+        try {
+            probe = UpstreamClient.getInstance().probe(url, timeout, maxBytes);
+        } finally {
+            concurrentProbes.release();
+        }
+
+        JsonObject probeJson = new JsonObject();
+        probeJson.put("url", url);
+        probeJson.put("host", host);
+        probeJson.put("description", description);
+        probeJson.put("status", probe.getStatus());
+        probeJson.put("latencyMillis", probe.getLatencyMillis());
+        probeJson.put("bytes", probe.getBytes());
+        probeJson.put("healthy", probe.isHealthy());
+        probeJson.put("checked", System.currentTimeMillis());
+        if (probe.getError() != null) {
+            probeJson.put("error", probe.getError());
+        }
+        if (!probe.isHealthy()) {
+            LOGGER.warn("API endpoint " + url + " is not working: " + (probe.getError() != null ? probe.getError() : "status " + probe.getStatus()));
+        }
+        health.put(url, probeJson);
+        appendHealthLog(probeJson);
+    }
+
+    private void loadHealthLog() {
+        if (!Files.exists(healthLogPath)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(healthLogPath, StandardCharsets.UTF_8)) {
+                JsonObject probeJson = JsonObject.tryParse(line);
+                if (probeJson != null && probeJson.tryGetString("url") != null) {
+                    health.put(probeJson.tryGetString("url"), probeJson);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("could not read " + healthLogPath, e);
+        }
+        LOGGER.info("loaded " + health.size() + " endpoint health results");
+    }
+
+    private synchronized void appendHealthLog(JsonObject probeJson) {
+        try {
+            Path directory = healthLogPath.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            Files.writeString(healthLogPath, probeJson.toString() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.error("could not write " + healthLogPath, e);
+        }
+    }
+
+    /**
+     * Write the median latency and the health of the hosts to the APIs in apis.json.
+     */
+    private void updateApis(Map<String, String> endpoints) {
+        // the log still has endpoints that are no longer in the collection, they don't count
+        List<JsonObject> probeJsons = new ArrayList<>();
+        for (String url : endpoints.keySet()) {
+            JsonObject probeJson = health.get(url);
+            if (probeJson != null) {
+                probeJsons.add(probeJson);
+            }
+        }
+
+        JsonArray apis = JsonArray.tryParse(FileHelper.tryReadFileToString(apisPath));
+        if (apis == null) {
+            LOGGER.warn("could not read " + apisPath);
+            return;
+        }
+        int updated = applyHealth(apis, probeJsons);
+        FileHelper.writeToFile(apisPath, apis.toString(2));
+        LOGGER.info("updated latency and health of " + updated + " APIs in " + apisPath);
+    }
+
+    /**
+     * A host is healthy if most of its probed endpoints work. Endpoints that rejected us because we have no key for them tell nothing about
+     * the host, they don't count.
+     *
+     * @param apis The APIs of apis.json, they get the health and the median latency of their host.
+     * @param probeJsons The latest probe of every endpoint.
+     * @return The number of updated APIs.
+     */
+    static int applyHealth(JsonArray apis, List<JsonObject> probeJsons) {
+        Map<String, List<Long>> hostLatencies = new HashMap<>();
+        Map<String, int[]> hostHealth = new HashMap<>();
+        for (JsonObject probeJson : probeJsons) {
+            String host = probeJson.tryGetString("host");
+            long status = probeJson.tryGetLong("status", 0L);
+            if (host == null || status == 401 || status == 403) {
+                continue;
+            }
+            int[] healthCounts = hostHealth.computeIfAbsent(host, k -> new int[2]);
+            if (Boolean.TRUE.equals(probeJson.tryGetBoolean("healthy"))) {
+                healthCounts[0]++;
+                hostLatencies.computeIfAbsent(host, k -> new ArrayList<>()).add(probeJson.tryGetLong("latencyMillis", 0L));
+            } else {
+                healthCounts[1]++;
+            }
+        }
+
+        int updated = 0;
+        for (int i = 0; i < apis.size(); i++) {
+            JsonObject apiJson = apis.tryGetJsonObject(i);
+            String host = UrlHelper.getDomain(apiJson.tryGetString("url"), false, false);
+            int[] healthCounts = hostHealth.get(host);
+            if (healthCounts == null) {
+                continue;
+            }
+            apiJson.put("healthy", healthCounts[0] >= healthCounts[1]);
+            List<Long> latencies = hostLatencies.get(host);
+            if (latencies != null) {
+                Collections.sort(latencies);
+                apiJson.put("latency_millis", latencies.get(latencies.size() / 2));
+            }
+            updated++;
+        }
+        return updated;
+    }
+
+    /**
+     * Probes mostly wait for the network, so use virtual threads if the JVM has them (Java 21+).
+     */
+    private ExecutorService createExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(maxConcurrentProbes);
+        }
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         new ImportEndpoints().generate();
     }
 }
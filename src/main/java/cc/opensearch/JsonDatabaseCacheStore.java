@@ -0,0 +1,51 @@
+package cc.opensearch;
+
+import ws.palladian.persistence.json.JsonDatabase;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.Map;
+
+/**
+ * A cache store on top of a {@link JsonDatabase}. It never removes expired values, use {@link MappedLogCacheStore} if that matters.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class JsonDatabaseCacheStore implements CacheStore {
+    private final JsonDatabase jsonDatabase;
+
+    /** collection => field that holds the key */
+    private final Map<String, String> keyFields;
+
+    public JsonDatabaseCacheStore(String path, Map<String, String> keyFields) {
+        this.jsonDatabase = new JsonDatabase(path, 1000);
+        this.keyFields = keyFields;
+        for (Map.Entry<String, String> entry : keyFields.entrySet()) {
+            jsonDatabase.createIndex(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public JsonObject get(String collection, String key) {
+        JsonObject value = jsonDatabase.getOne(collection, getKeyField(collection), key);
+        if (value == null || value.tryGetLong("expires", 0L) <= System.currentTimeMillis()) {
+            return null;
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String collection, String key, JsonObject value) {
+        value.put(getKeyField(collection), key);
+        jsonDatabase.add(collection, value);
+    }
+
+    private String getKeyField(String collection) {
+        return keyFields.getOrDefault(collection, "_id");
+    }
+
+    @Override
+    public void close() {
+        // the JsonDatabase writes through, nothing to do
+    }
+}
@@ -0,0 +1,378 @@
+package cc.opensearch;
+
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads an API response as a stream and builds a compact projection of it: only the first elements of arrays and the beginning of long strings
+ * are kept since that is all the templates and the LLM ever see. The JSON object is built while reading, so the response is never held in
+ * memory as a whole or parsed twice, and reading stops as soon as it is larger than allowed.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class JsonProjector {
+    /** maximum number of bytes we read from the API */
+    private final long maxBytes;
+
+    /** arrays are cut after this many elements */
+    private final int maxArrayLength;
+
+    /** strings are cut after this many characters */
+    private final int maxStringLength;
+
+    /** deeper nesting is not valid for us, this also protects the stack */
+    private final int maxDepth;
+
+    public JsonProjector(long maxBytes, int maxArrayLength, int maxStringLength, int maxDepth) {
+        this.maxBytes = maxBytes;
+        this.maxArrayLength = maxArrayLength;
+        this.maxStringLength = maxStringLength;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Project the JSON from the stream. An array on the root level is wrapped into an object as {"response": [...]}.
+     *
+     * @return The projected JSON object, built while reading so the response is never held as text.
+     * @throws UpstreamClient.InvalidResponseException If the response is not valid JSON or too large.
+     */
+    public JsonObject project(InputStream inputStream) throws IOException {
+        Parser parser = new Parser(new InputStreamReader(new LimitedInputStream(inputStream, maxBytes), StandardCharsets.UTF_8));
+        JsonObject projection;
+        int c = parser.peek();
+        if (c == '[') {
+            projection = new JsonObject();
+            projection.put("response", parser.value(true, 0));
+        } else if (c == '{') {
+            projection = (JsonObject) parser.value(true, 0);
+        } else {
+            throw new UpstreamClient.InvalidResponseException("response is not a JSON object or array");
+        }
+        if (parser.peek() != -1) {
+            throw new UpstreamClient.InvalidResponseException("unexpected content after the JSON");
+        }
+        return projection;
+    }
+
+    public JsonObject project(String json) throws IOException {
+        return project(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private class Parser {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+
+        /** the characters of the current string or number */
+        private final StringBuilder text = new StringBuilder(256);
+
+        private Parser(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * @return The next character that is not whitespace without consuming it, -1 at the end.
+         */
+        private int peek() throws IOException {
+            while (true) {
+                if (position == limit) {
+                    limit = reader.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return -1;
+                    }
+                }
+                char c = buffer[position];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+                position++;
+            }
+        }
+
+        /**
+         * @return The next character including whitespace without consuming it, -1 at the end.
+         */
+        private int peekRaw() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position];
+        }
+
+        /**
+         * @return The next character, including whitespace.
+         */
+        private char next() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    throw new UpstreamClient.InvalidResponseException("unexpected end of JSON");
+                }
+            }
+            return buffer[position++];
+        }
+
+        private void expect(char expected) throws IOException {
+            if (peek() != expected) {
+                throw new UpstreamClient.InvalidResponseException("expected '" + expected + "' in JSON");
+            }
+            position++;
+        }
+
+        /**
+         * Read a value.
+         *
+         * @param keep Whether the value is part of the projection.
+         * @return The value if it is kept, otherwise null.
+         */
+        private Object value(boolean keep, int depth) throws IOException {
+            if (depth > maxDepth) {
+                throw new UpstreamClient.InvalidResponseException("JSON is nested too deeply");
+            }
+            int c = peek();
+            switch (c) {
+                case '{':
+                    return object(keep, depth);
+                case '[':
+                    return array(keep, depth);
+                case '"':
+                    return string(keep, maxStringLength);
+                case 't':
+                    literal("true");
+                    return keep ? Boolean.TRUE : null;
+                case 'f':
+                    literal("false");
+                    return keep ? Boolean.FALSE : null;
+                case 'n':
+                    literal("null");
+                    return null;
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) {
+                        return number(keep);
+                    }
+                    throw new UpstreamClient.InvalidResponseException("unexpected character in JSON: " + (c == -1 ? "end" : String.valueOf((char) c)));
+            }
+        }
+
+        private JsonObject object(boolean keep, int depth) throws IOException {
+            expect('{');
+            JsonObject object = keep ? new JsonObject() : null;
+            if (peek() == '}') {
+                position++;
+                return object;
+            }
+            while (true) {
+                if (peek() != '"') {
+                    throw new UpstreamClient.InvalidResponseException("expected a field name in JSON");
+                }
+                // field names are never cut
+                String name = string(keep, Integer.MAX_VALUE);
+                expect(':');
+                Object value = value(keep, depth + 1);
+                if (keep) {
+                    object.put(name, value);
+                }
+                int c = peek();
+                position++;
+                if (c == '}') {
+                    return object;
+                }
+                if (c != ',') {
+                    throw new UpstreamClient.InvalidResponseException("expected ',' or '}' in JSON");
+                }
+            }
+        }
+
+        private JsonArray array(boolean keep, int depth) throws IOException {
+            expect('[');
+            JsonArray array = keep ? new JsonArray() : null;
+            if (peek() == ']') {
+                position++;
+                return array;
+            }
+            int elements = 0;
+            while (true) {
+                // elements beyond the maximum are read but not kept
+                boolean keepElement = keep && elements < maxArrayLength;
+                Object element = value(keepElement, depth + 1);
+                if (keepElement) {
+                    array.add(element);
+                }
+                elements++;
+                int c = peek();
+                position++;
+                if (c == ']') {
+                    return array;
+                }
+                if (c != ',') {
+                    throw new UpstreamClient.InvalidResponseException("expected ',' or ']' in JSON");
+                }
+            }
+        }
+
+        private String string(boolean keep, int maxLength) throws IOException {
+            expect('"');
+            text.setLength(0);
+            int length = 0;
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    c = unescape(next());
+                } else if (c < 0x20) {
+                    throw new UpstreamClient.InvalidResponseException("control character in JSON string");
+                }
+                if (keep && length < maxLength) {
+                    text.append(c);
+                }
+                length++;
+            }
+            if (!keep) {
+                return null;
+            }
+            if (length > maxLength) {
+                // don't leave half of a surrogate pair at the end
+                if (text.length() > 0 && Character.isHighSurrogate(text.charAt(text.length() - 1))) {
+                    text.setLength(text.length() - 1);
+                }
+                text.append('…');
+            }
+            return text.toString();
+        }
+
+        private char unescape(char escaped) throws IOException {
+            switch (escaped) {
+                case '"':
+                case '\\':
+                case '/':
+                    return escaped;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw new UpstreamClient.InvalidResponseException("invalid unicode escape in JSON");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    return (char) code;
+                default:
+                    throw new UpstreamClient.InvalidResponseException("invalid escape in JSON");
+            }
+        }
+
+        private Number number(boolean keep) throws IOException {
+            text.setLength(0);
+            boolean integer = true;
+            while (true) {
+                int c = peekRaw();
+                if (c == -1 || !(c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+                    break;
+                }
+                position++;
+                if (c == '.' || c == 'e' || c == 'E') {
+                    integer = false;
+                }
+                text.append((char) c);
+            }
+            if (!keep) {
+                return null;
+            }
+            try {
+                if (integer) {
+                    long value = Long.parseLong(text.toString());
+                    if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+                        return (int) value;
+                    }
+                    return value;
+                }
+                return Double.parseDouble(text.toString());
+            } catch (NumberFormatException e) {
+                try {
+                    // integers beyond long, e.g. large ids
+                    return new BigDecimal(text.toString());
+                } catch (NumberFormatException e2) {
+                    throw new UpstreamClient.InvalidResponseException("invalid number in JSON: " + text);
+                }
+            }
+        }
+
+        private void literal(String literal) throws IOException {
+            for (int i = 0; i < literal.length(); i++) {
+                if (next() != literal.charAt(i)) {
+                    throw new UpstreamClient.InvalidResponseException("invalid literal in JSON");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails once more than the maximum number of bytes were read.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long maxBytes;
+        private long bytesRead = 0;
+
+        private LimitedInputStream(InputStream inputStream, long maxBytes) {
+            super(inputStream);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            bytesRead += n;
+            if (bytesRead > maxBytes) {
+                throw new UpstreamClient.InvalidResponseException("response is larger than " + maxBytes + " bytes");
+            }
+        }
+    }
+}
@@ -1,25 +1,60 @@
 package cc.opensearch;
 
 import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
 import ws.palladian.helper.ConfigHolder;
 import ws.palladian.persistence.json.JsonArray;
-import ws.palladian.retrieval.search.web.OpenAiApi;
-import ws.palladian.retrieval.search.web.TogetherApi;
+import ws.palladian.persistence.json.JsonObject;
 
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
- * This class wraps large language model APIs: OpenAI and Together AI for open source models.
+ * This class wraps large language model APIs: OpenAI, Together AI for open source models and any other OpenAI compatible API, e.g. a local
+ * server for tests. Requests go to the first provider in the configured order that is not rate limited and has capacity left. If it fails,
+ * the next one is tried, and if it takes longer than it usually does for this kind of call (its 95th latency percentile), the same request is sent to the next
+ * provider too and whichever answers first wins.
  *
  * @author David Urbansky
  * @since 02.01.2024 at 11:16
  **/
 public class LargeLanguageModelApi {
-    /** Open AI */
-    private final OpenAiApi openAiApi;
+    private static final Logger LOGGER = Logger.getLogger(LargeLanguageModelApi.class);
 
-    /** Together AI to use open source models */
-    private final TogetherApi togetherApi;
+    /** kinds of calls, each kind is hedged by its own latencies */
+    public static final String ROUTING = "routing";
+    public static final String RENDERING = "rendering";
+
+    /** the providers in the order of preference */
+    private final List<LlmProvider> providers = new ArrayList<>();
+
+    /** whether slow requests are sent to a second provider */
+    private final boolean hedging;
+
+    /** we never hedge earlier than this, otherwise we would double our bill whenever a provider is fast */
+    private final long hedgeMinDelayMillis;
+
+    /** when to hedge if we don't know the latencies of a provider yet */
+    private final long hedgeDefaultDelayMillis;
+
+    private final Duration timeout;
+
+    private final AtomicInteger hedgedRequests = new AtomicInteger();
+    private final AtomicInteger failovers = new AtomicInteger();
 
     static class SingletonHolder {
 
@@ -31,28 +66,271 @@ public class LargeLanguageModelApi {
     }
 
     private LargeLanguageModelApi() {
-        // check for which API we have an API key
         Configuration config = ConfigHolder.getInstance().getConfig();
-        if (config.containsKey(OpenAiApi.CONFIG_API_KEY)) {
-            openAiApi = new OpenAiApi(config);
-        } else {
-            openAiApi = null;
+        hedging = config.getBoolean("llm.hedging", true);
+        hedgeMinDelayMillis = config.getLong("llm.hedge.min_delay_millis", 1000);
+        hedgeDefaultDelayMillis = config.getLong("llm.hedge.default_delay_millis", 10000);
+        timeout = Duration.ofSeconds(config.getLong("llm.timeout_seconds", 120));
+
+        HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+        for (String name : config.getStringArray("llm.providers")) {
+            name = name.trim();
+            String apiKey = config.getString("api." + name + ".key", "");
+            String chatUrl = config.getString("api." + name + ".chat_url", null);
+            // providers without a key are only used if we are told where they are, e.g. a local server
+            if (apiKey.isEmpty() && chatUrl == null) {
+                continue;
+            }
+            if (chatUrl == null) {
+                chatUrl = defaultChatUrl(name);
+            }
+            if (chatUrl == null) {
+                LOGGER.warn("no chat URL for LLM provider " + name);
+                continue;
+            }
+            providers.add(new LlmProvider(name, chatUrl, apiKey, config.getString("api." + name + ".model"), config.getInt("api." + name + ".max_concurrent_requests", 8),
+                    httpClient));
+        }
+        LOGGER.info("LLM providers: " + providers);
+    }
+
+    private static String defaultChatUrl(String name) {
+        switch (name) {
+            case "openai":
+                return "https://api.openai.com/v1/chat/completions";
+            case "together":
+                return "https://api.together.xyz/v1/chat/completions";
+            default:
+                return null;
         }
-        if (config.containsKey(TogetherApi.CONFIG_API_KEY)) {
-            togetherApi = new TogetherApi(config);
-        } else {
-            togetherApi = null;
+    }
+
+    private static JsonObject createRequestJson(JsonArray messages, double temperature, int maxTokens, boolean stream) {
+        JsonObject requestJson = new JsonObject();
+        requestJson.put("messages", messages);
+        requestJson.put("temperature", temperature);
+        requestJson.put("max_tokens", maxTokens);
+        if (stream) {
+            requestJson.put("stream", true);
+            // without it OpenAI-compatible providers send no usage chunk and we could not count the tokens of streamed requests
+            JsonObject streamOptions = new JsonObject();
+            streamOptions.put("include_usage", true);
+            requestJson.put("stream_options", streamOptions);
         }
+        return requestJson;
     }
 
-    public String chat(JsonArray messages, double temperature, AtomicInteger usedTokens, int maxTokens) throws Exception {
-        Configuration config = ConfigHolder.getInstance().getConfig();
-        if (openAiApi != null) {
-            return openAiApi.chat(messages, temperature, usedTokens, config.getString("api.openai.model"), maxTokens);
+    /**
+     * Get a permit of the most preferred provider that was not tried yet and that is not rate limited and has capacity left.
+     *
+     * @param wait Whether to wait until a provider has capacity again.
+     * @return The provider or null if there is none.
+     */
+    private LlmProvider acquireProvider(Set<LlmProvider> tried, boolean wait) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout.toMillis();
+        while (true) {
+            boolean untried = false;
+            for (LlmProvider provider : providers) {
+                if (tried.contains(provider)) {
+                    continue;
+                }
+                untried = true;
+                if (provider.tryAcquire()) {
+                    tried.add(provider);
+                    return provider;
+                }
+            }
+            if (!untried || !wait) {
+                return null;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("all LLM providers are busy or rate limited");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Ask the LLM. The request goes to the preferred provider, is hedged to the next one if it takes unusually long for this kind of call and
+     * fails over to the next one on errors.
+     *
+     * @param kind The kind of call, e.g. {@link #ROUTING} or {@link #RENDERING}.
+     * @return The generated text.
+     */
+    public String chat(String kind, JsonArray messages, double temperature, AtomicInteger usedTokens, int maxTokens) throws Exception {
+        if (providers.isEmpty()) {
+            throw new IOException("no LLM provider configured");
+        }
+        HedgedCall call = new HedgedCall(kind, createRequestJson(messages, temperature, maxTokens, false));
+        LlmProvider primary = acquireProvider(call.tried, true);
+        try {
+            // the timeout is for the whole call, hedged or not
+            long deadline = System.currentTimeMillis() + timeout.toMillis();
+            call.start(primary);
+
+            long hedgeDelay = primary.getLatencyPercentile(kind, .95);
+            hedgeDelay = hedgeDelay < 0 ? hedgeDefaultDelayMillis : Math.max(hedgeMinDelayMillis, hedgeDelay);
+            LlmProvider.Completion completion;
+            try {
+                completion = call.winner.get(hedging ? Math.min(hedgeDelay, timeout.toMillis()) : timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (!hedging) {
+                    throw e;
+                }
+                if (call.startNext()) {
+                    LOGGER.info(primary.getName() + " takes longer than " + hedgeDelay + "ms, hedged the request");
+                    hedgedRequests.incrementAndGet();
+                }
+                completion = call.winner.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            usedTokens.addAndGet(completion.getUsedTokens());
+            return completion.getText();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            call.cancel();
         }
-        if (togetherApi != null) {
-            return togetherApi.chat(messages, temperature, usedTokens, config.getString("api.together.model"), maxTokens);
+    }
+
+    /**
+     * A request that might be sent to several providers, the first answer wins.
+     */
+    private class HedgedCall {
+        private final String kind;
+        private final JsonObject requestJson;
+        private final Set<LlmProvider> tried = ConcurrentHashMap.newKeySet();
+        private final List<CompletableFuture<LlmProvider.Completion>> attempts = new ArrayList<>();
+        private final CompletableFuture<LlmProvider.Completion> winner = new CompletableFuture<>();
+        private int running = 0;
+
+        private HedgedCall(String kind, JsonObject requestJson) {
+            this.kind = kind;
+            this.requestJson = requestJson;
+        }
+
+        /**
+         * Send the request to the next provider that has capacity.
+         *
+         * @return True if there was such a provider.
+         */
+        private boolean startNext() throws IOException, InterruptedException {
+            LlmProvider provider = acquireProvider(tried, false);
+            if (provider == null) {
+                return false;
+            }
+            start(provider);
+            return true;
+        }
+
+        private void start(LlmProvider provider) {
+            CompletableFuture<LlmProvider.Completion> attempt;
+            synchronized (this) {
+                if (winner.isDone()) {
+                    // we have a permit that we won't use
+                    provider.release();
+                    return;
+                }
+                running++;
+                attempt = provider.chat(requestJson, timeout, kind);
+                attempts.add(attempt);
+            }
+            attempt.whenComplete((completion, throwable) -> onComplete(provider, completion, throwable));
+        }
+
+        private void onComplete(LlmProvider provider, LlmProvider.Completion completion, Throwable throwable) {
+            boolean failOver;
+            synchronized (this) {
+                running--;
+                if (throwable == null) {
+                    winner.complete(completion);
+                    return;
+                }
+                if (throwable instanceof CancellationException || winner.isDone()) {
+                    return;
+                }
+                LOGGER.warn("LLM provider " + provider.getName() + " failed: " + throwable.getMessage());
+                failOver = true;
+            }
+            try {
+                if (failOver && startNext()) {
+                    failovers.incrementAndGet();
+                    return;
+                }
+            } catch (IOException | InterruptedException e) {
+                // we can't get another provider, see below
+            }
+            synchronized (this) {
+                if (running == 0) {
+                    winner.completeExceptionally(throwable.getCause() != null ? throwable.getCause() : throwable);
+                }
+            }
+        }
+
+        /**
+         * Stop all requests that are still running, e.g. the one that lost the race.
+         */
+        private synchronized void cancel() {
+            winner.cancel(true);
+            for (CompletableFuture<LlmProvider.Completion> attempt : attempts) {
+                attempt.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #chat(String, JsonArray, double, AtomicInteger, int)} but the generated text is passed to the chunk consumer as soon as the LLM
+     * produces it. A stream can't be hedged since the chunks are shown right away, but we fail over to the next provider as long as the failed
+     * one has not produced any text.
+     *
+     * @return The complete generated text.
+     */
+    public String chatStream(JsonArray messages, double temperature, AtomicInteger usedTokens, int maxTokens, Consumer<String> chunkConsumer) throws Exception {
+        if (providers.isEmpty()) {
+            throw new IOException("no LLM provider configured");
+        }
+        JsonObject requestJson = createRequestJson(messages, temperature, maxTokens, true);
+        Set<LlmProvider> tried = new HashSet<>();
+        LlmProvider provider = acquireProvider(tried, true);
+        while (true) {
+            AtomicBoolean producedText = new AtomicBoolean();
+            try {
+                LlmProvider.Completion completion = provider.chatStream(requestJson, timeout, chunk -> {
+                    producedText.set(true);
+                    chunkConsumer.accept(chunk);
+                });
+                usedTokens.addAndGet(completion.getUsedTokens());
+                return completion.getText();
+            } catch (IOException e) {
+                if (producedText.get()) {
+                    throw e;
+                }
+                LlmProvider nextProvider = acquireProvider(tried, false);
+                if (nextProvider == null) {
+                    throw e;
+                }
+                LOGGER.warn("LLM provider " + provider.getName() + " failed: " + e.getMessage());
+                failovers.incrementAndGet();
+                provider = nextProvider;
+            }
+        }
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("hedgedRequests", hedgedRequests.get());
+        statistics.put("failovers", failovers.get());
+        for (LlmProvider provider : providers) {
+            JsonObject providerStatistics = new JsonObject();
+            for (String kind : provider.getKinds()) {
+                JsonObject kindStatistics = new JsonObject();
+                kindStatistics.put("p50", provider.getLatencyPercentile(kind, .5));
+                kindStatistics.put("p95", provider.getLatencyPercentile(kind, .95));
+                providerStatistics.put(kind, kindStatistics);
+            }
+            providerStatistics.put("rateLimited", provider.isRateLimited());
+            providerStatistics.put("availablePermits", provider.getAvailablePermits());
+            statistics.put(provider.getName(), providerStatistics);
         }
-        return null;
+        return statistics;
     }
 }
@@ -0,0 +1,336 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * One LLM provider with an OpenAI compatible chat completions API, e.g. OpenAI, Together AI or a local server. The provider knows how fast it
+ * answered recently, whether it told us to slow down and how many requests we may send it at once.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class LlmProvider {
+    private static final Logger LOGGER = Logger.getLogger(LlmProvider.class);
+
+    /** durations in rate limit headers look like "1s", "6m0s" or "20ms" */
+    private static final Pattern DURATION = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|s|m|h)");
+
+    /** how many latencies we keep to compute the percentiles */
+    private static final int LATENCY_SAMPLES = 128;
+
+    /** we don't trust percentiles of fewer latencies */
+    private static final int MIN_LATENCY_SAMPLES = 10;
+
+    private final String name;
+    private final String chatUrl;
+    private final String apiKey;
+    private final String model;
+    private final HttpClient httpClient;
+
+    /** limits the concurrent requests so we stay within our quota */
+    private final Semaphore concurrencyLimiter;
+
+    /** kind of call => the latest latencies, a short routing call and a long render must not share percentiles */
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+
+    /** the provider told us not to send requests before this time */
+    private volatile long rateLimitedUntil = 0L;
+
+    /**
+     * The latest latencies of one kind of call in milliseconds, a ring buffer.
+     */
+    private static class Latencies {
+        private final long[] samples = new long[LATENCY_SAMPLES];
+        private int count = 0;
+
+        private synchronized void record(long latency) {
+            samples[count % LATENCY_SAMPLES] = latency;
+            count++;
+        }
+
+        private synchronized long getPercentile(double percentile) {
+            int size = Math.min(count, LATENCY_SAMPLES);
+            if (size < MIN_LATENCY_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return sorted[Math.min(size - 1, (int) Math.ceil(percentile * size) - 1)];
+        }
+    }
+
+    /**
+     * The text that the LLM generated and the tokens it used for it.
+     */
+    public static class Completion {
+        private final String text;
+        private final int usedTokens;
+
+        private Completion(String text, int usedTokens) {
+            this.text = text;
+            this.usedTokens = usedTokens;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getUsedTokens() {
+            return usedTokens;
+        }
+    }
+
+    public LlmProvider(String name, String chatUrl, String apiKey, String model, int maxConcurrentRequests, HttpClient httpClient) {
+        this.name = name;
+        this.chatUrl = chatUrl;
+        this.apiKey = apiKey;
+        this.model = model;
+        this.concurrencyLimiter = new Semaphore(maxConcurrentRequests);
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * @return True if the provider did not ask us to wait and we may send another request right now. If so, the caller holds a permit and
+     * has to make a request which releases it.
+     */
+    public boolean tryAcquire() {
+        if (System.currentTimeMillis() < rateLimitedUntil) {
+            return false;
+        }
+        return concurrencyLimiter.tryAcquire();
+    }
+
+    /**
+     * Give back a permit from {@link #tryAcquire()} without making a request.
+     */
+    public void release() {
+        concurrencyLimiter.release();
+    }
+
+    /**
+     * Send a chat request. The caller must hold a permit from {@link #tryAcquire()}, it is released when the request completes. Cancelling the
+     * result aborts the request.
+     *
+     * @param kind The kind of call, e.g. routing or rendering, its latencies are kept apart from the others.
+     */
+    public CompletableFuture<Completion> chat(JsonObject requestJson, Duration timeout, String kind) {
+        long start = System.currentTimeMillis();
+        HttpRequest request = createRequest(requestJson, timeout);
+        CompletableFuture<HttpResponse<String>> response = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<Completion> completion = response.thenApply(httpResponse -> {
+            readRateLimits(httpResponse.statusCode(), httpResponse.headers());
+            if (httpResponse.statusCode() != 200) {
+                throw new LlmException(name + " chat request failed with status " + httpResponse.statusCode());
+            }
+            JsonObject responseJson = JsonObject.tryParse(httpResponse.body());
+            String text = responseJson == null ? null : responseJson.tryQueryString("choices[0]/message/content");
+            if (text == null) {
+                throw new LlmException(name + " returned no text");
+            }
+            latencies.computeIfAbsent(kind, k -> new Latencies()).record(System.currentTimeMillis() - start);
+            JsonObject usage = responseJson.tryGetJsonObject("usage");
+            Integer usedTokens = usage == null ? null : usage.tryGetInt("total_tokens");
+            return new Completion(text, usedTokens == null ? 0 : usedTokens);
+        });
+        completion.whenComplete((result, throwable) -> {
+            concurrencyLimiter.release();
+            long latency = System.currentTimeMillis() - start;
+            if (throwable != null) {
+                // e.g. we were cancelled because another provider was faster, stop the request
+                response.cancel(true);
+                recordRequest(latency, throwable instanceof CancellationException ? "cancelled" : "error", 0);
+            } else {
+                recordRequest(latency, "ok", result.getUsedTokens());
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Send a streaming chat request, the generated text is passed to the chunk consumer as soon as the LLM produces it. The caller must hold a
+     * permit from {@link #tryAcquire()}, it is released when the request completes.
+     *
+     * @return The complete generated text.
+     */
+    public Completion chatStream(JsonObject requestJson, Duration timeout, Consumer<String> chunkConsumer) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String outcome = "error";
+        int usedTokens = 0;
+        try {
+            HttpResponse<Stream<String>> response = httpClient.send(createRequest(requestJson, timeout), HttpResponse.BodyHandlers.ofLines());
+            readRateLimits(response.statusCode(), response.headers());
+            if (response.statusCode() != 200) {
+                response.body().close();
+                throw new IOException(name + " streaming chat request failed with status " + response.statusCode());
+            }
+
+            StringBuilder text = new StringBuilder();
+            try (Stream<String> lines = response.body()) {
+                for (Iterator<String> iterator = lines.iterator(); iterator.hasNext(); ) {
+                    String line = iterator.next();
+                    if (!line.startsWith("data:")) {
+                        continue;
+                    }
+                    String data = line.substring(5).trim();
+                    if (data.equals("[DONE]")) {
+                        break;
+                    }
+                    JsonObject chunkJson = JsonObject.tryParse(data);
+                    if (chunkJson == null) {
+                        continue;
+                    }
+                    JsonObject usage = chunkJson.tryGetJsonObject("usage");
+                    if (usage != null && usage.tryGetInt("total_tokens") != null) {
+                        usedTokens += usage.tryGetInt("total_tokens");
+                    }
+                    String chunk = chunkJson.tryQueryString("choices[0]/delta/content");
+                    if (chunk != null && !chunk.isEmpty()) {
+                        text.append(chunk);
+                        chunkConsumer.accept(chunk);
+                    }
+                }
+            }
+            outcome = "ok";
+            return new Completion(text.toString(), usedTokens);
+        } finally {
+            concurrencyLimiter.release();
+            recordRequest(System.currentTimeMillis() - start, outcome, usedTokens);
+        }
+    }
+
+    private void recordRequest(long latency, String outcome, int usedTokens) {
+        Metrics metrics = Metrics.getInstance();
+        metrics.observeMillis(Metrics.LLM_REQUEST_DURATION, latency, "provider", name, "outcome", outcome);
+        if ("ok".equals(outcome)) {
+            metrics.observe(Metrics.LLM_TOKENS, usedTokens, "provider", name);
+        }
+    }
+
+    private HttpRequest createRequest(JsonObject requestJson, Duration timeout) {
+        JsonObject providerRequestJson = JsonObject.tryParse(requestJson.toString());
+        providerRequestJson.put("model", model);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(chatUrl))
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(providerRequestJson.toString()));
+        if (apiKey != null && !apiKey.isEmpty()) {
+            builder.header("Authorization", "Bearer " + apiKey);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Stop sending requests when the provider says we used up our quota or when it rejected a request because of it.
+     */
+    private void readRateLimits(int statusCode, HttpHeaders headers) {
+        long waitMillis = 0;
+        if (statusCode == 429) {
+            waitMillis = headers.firstValue("retry-after").map(LlmProvider::parseDuration).orElse(10_000L);
+        }
+        if ("0".equals(headers.firstValue("x-ratelimit-remaining-requests").orElse(null))) {
+            waitMillis = Math.max(waitMillis, headers.firstValue("x-ratelimit-reset-requests").map(LlmProvider::parseDuration).orElse(1000L));
+        }
+        if ("0".equals(headers.firstValue("x-ratelimit-remaining-tokens").orElse(null))) {
+            waitMillis = Math.max(waitMillis, headers.firstValue("x-ratelimit-reset-tokens").map(LlmProvider::parseDuration).orElse(1000L));
+        }
+        if (waitMillis > 0) {
+            rateLimitedUntil = System.currentTimeMillis() + waitMillis;
+            LOGGER.warn(name + " is rate limited for " + waitMillis + "ms");
+        }
+    }
+
+    /**
+     * Parse durations like "20ms", "6m0s" or plain seconds like "2".
+     */
+    static long parseDuration(String duration) {
+        duration = duration.trim();
+        try {
+            return (long) (Double.parseDouble(duration) * 1000);
+        } catch (NumberFormatException e) {
+            // not plain seconds
+        }
+        double millis = 0;
+        Matcher matcher = DURATION.matcher(duration);
+        while (matcher.find()) {
+            double value = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms":
+                    millis += value;
+                    break;
+                case "s":
+                    millis += value * 1000;
+                    break;
+                case "m":
+                    millis += value * 60_000;
+                    break;
+                default:
+                    millis += value * 3_600_000;
+            }
+        }
+        return (long) millis;
+    }
+
+    /**
+     * @return The latency percentile (0-1) in milliseconds over the latest requests of the kind or -1 if there were not enough requests yet.
+     */
+    public long getLatencyPercentile(String kind, double percentile) {
+        Latencies kindLatencies = latencies.get(kind);
+        return kindLatencies == null ? -1 : kindLatencies.getPercentile(percentile);
+    }
+
+    /**
+     * @return The kinds of calls that were made.
+     */
+    public Set<String> getKinds() {
+        return latencies.keySet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRateLimited() {
+        return System.currentTimeMillis() < rateLimitedUntil;
+    }
+
+    public int getAvailablePermits() {
+        return concurrencyLimiter.availablePermits();
+    }
+
+    /**
+     * The provider did not answer the way we expected.
+     */
+    public static class LlmException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public LlmException(String message) {
+            super(message);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,445 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An embedded cache store. Records are appended to a memory-mapped log file and found through an open addressing hash index that lives off-heap.
+ * Values are stored as deflated JSON. A background job compacts the log by dropping expired and overwritten records, and if the log reaches its
+ * size cap the oldest records are dropped; puts that don't fit while the log is compacted are not cached.
+ *
+ * Record layout: int length of the rest | long expires | int key length | key (collection + \0 + key) | deflated JSON value
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class MappedLogCacheStore implements CacheStore {
+    private static final Logger LOGGER = Logger.getLogger(MappedLogCacheStore.class);
+
+    private static final String LOG_FILE = "cache.log";
+
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    /** bytes per index slot: long hash + long offset */
+    private static final int SLOT_SIZE = 16;
+
+    private final Path logPath;
+    private final long capacity;
+
+    private FileChannel channel;
+    private MappedByteBuffer log;
+
+    /** where the next record is written */
+    private int writePosition;
+
+    /** bytes of records that are overwritten and can be dropped by the next compaction */
+    private long deadBytes;
+
+    /** the hash index, slot = hash + offset of the record in the log, a hash of 0 marks an empty slot */
+    private ByteBuffer index;
+    private int slots;
+    private int usedSlots;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ScheduledExecutorService compactionExecutor;
+
+    /** a compaction was requested because the log is full */
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+    public MappedLogCacheStore(String directory, long maxSizeBytes, long compactionMinutes) {
+        this.logPath = Paths.get(directory, LOG_FILE);
+        // a single mapping can not be larger than 2GB
+        this.capacity = Math.min(maxSizeBytes, Integer.MAX_VALUE);
+        try {
+            Files.createDirectories(logPath.getParent());
+            open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not open cache log " + logPath, e);
+        }
+
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-store-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactionExecutor.scheduleWithFixedDelay(this::compactIfWorthIt, compactionMinutes, compactionMinutes, TimeUnit.MINUTES);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        rebuildIndex();
+    }
+
+    /**
+     * Scan the log to find where it ends and index all records. A record whose length was not written (e.g. after a crash) ends the log.
+     */
+    private void rebuildIndex() {
+        initIndex(1024);
+        writePosition = 0;
+        deadBytes = 0;
+        while (writePosition + HEADER_SIZE <= capacity) {
+            int length = log.getInt(writePosition);
+            if (length <= 0 || writePosition + 4L + length > capacity) {
+                break;
+            }
+            indexRecord(writePosition);
+            writePosition += 4 + length;
+        }
+        LOGGER.info("cache log " + logPath + " has " + usedSlots + " keys in " + writePosition + " bytes");
+    }
+
+    private void initIndex(int initialSlots) {
+        slots = initialSlots;
+        usedSlots = 0;
+        index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+    }
+
+    private void indexRecord(int offset) {
+        String key = readKey(offset);
+        long hash = hash(key);
+        int slot = findSlot(hash, key);
+        long previousOffset = index.getLong(slot * SLOT_SIZE + 8);
+        if (index.getLong(slot * SLOT_SIZE) == 0) {
+            usedSlots++;
+        } else {
+            deadBytes += 4 + log.getInt((int) previousOffset);
+        }
+        index.putLong(slot * SLOT_SIZE, hash);
+        index.putLong(slot * SLOT_SIZE + 8, offset);
+
+        if (usedSlots > slots * 0.7) {
+            growIndex();
+        }
+    }
+
+    private void growIndex() {
+        ByteBuffer oldIndex = index;
+        int oldSlots = slots;
+        slots *= 2;
+        index = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        for (int i = 0; i < oldSlots; i++) {
+            long hash = oldIndex.getLong(i * SLOT_SIZE);
+            if (hash == 0) {
+                continue;
+            }
+            int slot = (int) (hash & (slots - 1));
+            while (index.getLong(slot * SLOT_SIZE) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            index.putLong(slot * SLOT_SIZE, hash);
+            index.putLong(slot * SLOT_SIZE + 8, oldIndex.getLong(i * SLOT_SIZE + 8));
+        }
+    }
+
+    /**
+     * @return The slot with the key or the empty slot where it should go.
+     */
+    private int findSlot(long hash, String key) {
+        int slot = (int) (hash & (slots - 1));
+        while (true) {
+            long slotHash = index.getLong(slot * SLOT_SIZE);
+            if (slotHash == 0) {
+                return slot;
+            }
+            if (slotHash == hash && readKey((int) index.getLong(slot * SLOT_SIZE + 8)).equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+    }
+
+    @Override
+    public JsonObject get(String collection, String key) {
+        String indexKey = collection + '\0' + key;
+        byte[] value;
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(hash(indexKey), indexKey);
+            if (index.getLong(slot * SLOT_SIZE) == 0) {
+                return null;
+            }
+            int offset = (int) index.getLong(slot * SLOT_SIZE + 8);
+            if (log.getLong(offset + 4) <= System.currentTimeMillis()) {
+                return null;
+            }
+            int keyLength = log.getInt(offset + 12);
+            int valueLength = log.getInt(offset) - 8 - 4 - keyLength;
+            value = new byte[valueLength];
+            log.duplicate().position(offset + HEADER_SIZE + keyLength).get(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return JsonObject.tryParse(inflate(value));
+    }
+
+    @Override
+    public void put(String collection, String key, JsonObject value) {
+        byte[] keyBytes = (collection + '\0' + key).getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = deflate(value.toString());
+        long expires = value.tryGetLong("expires", 0L);
+        int recordSize = HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (recordSize > capacity / 4) {
+            LOGGER.warn("not caching " + key + ", " + recordSize + " bytes is too large for the cache log");
+            return;
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (writePosition + recordSize > capacity) {
+                // make room in the background instead of rewriting the log on the request path, until then we don't cache
+                if (compactionScheduled.compareAndSet(false, true)) {
+                    compactionExecutor.execute(() -> {
+                        try {
+                            compact(recordSize);
+                        } catch (Exception e) {
+                            LOGGER.error("could not compact cache log", e);
+                        } finally {
+                            compactionScheduled.set(false);
+                        }
+                    });
+                }
+                LOGGER.debug("cache log is full, not caching " + key);
+                return;
+            }
+            int offset = writePosition;
+            ByteBuffer buffer = log.duplicate();
+            buffer.position(offset + 4);
+            buffer.putLong(expires).putInt(keyBytes.length).put(keyBytes).put(valueBytes);
+            // the length is written last so a half written record is never read
+            log.putInt(offset, recordSize - 4);
+            writePosition += recordSize;
+            indexRecord(offset);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compact in the background if expired or overwritten records take up a noticeable part of the log.
+     */
+    private void compactIfWorthIt() {
+        try {
+            List<Integer> offsets;
+            long reclaimable;
+            int logSize;
+            lock.readLock().lock();
+            try {
+                offsets = liveOffsets();
+                reclaimable = deadBytes;
+                logSize = writePosition;
+            } finally {
+                lock.readLock().unlock();
+            }
+            // records don't change once they are written, we can read them without the lock
+            long now = System.currentTimeMillis();
+            for (int offset : offsets) {
+                if (log.getLong(offset + 4) <= now) {
+                    reclaimable += 4 + log.getInt(offset);
+                }
+            }
+            if (reclaimable > logSize / 10) {
+                compact(0);
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not compact cache log", e);
+        }
+    }
+
+    /**
+     * Rewrite the log with all live records that have not expired. If there is still not enough room for the required bytes, the oldest
+     * records are dropped too. Records don't change once they are written, so the lock is only held to take a snapshot of the index; the
+     * records are copied and synced without it. Only the records that were put in the meantime and the swap of the files need the write lock.
+     * Only called from the compaction thread, which is the only one that replaces the log.
+     */
+    void compact(int requiredBytes) {
+        Path compactedPath = logPath.resolveSibling(LOG_FILE + ".compacted");
+        try {
+            Files.deleteIfExists(compactedPath);
+            try (FileChannel compactedChannel = FileChannel.open(compactedPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                List<Integer> snapshot;
+                int copiedUntil;
+                lock.readLock().lock();
+                try {
+                    snapshot = liveOffsets();
+                    copiedUntil = writePosition;
+                } finally {
+                    lock.readLock().unlock();
+                }
+
+                long now = System.currentTimeMillis();
+                List<Integer> offsets = new ArrayList<>();
+                long liveBytes = 0;
+                for (int offset : snapshot) {
+                    if (log.getLong(offset + 4) > now) {
+                        offsets.add(offset);
+                        liveBytes += 4 + log.getInt(offset);
+                    }
+                }
+                offsets.sort(null);
+
+                // leave some room so we don't have to compact again right away
+                long budget = capacity - requiredBytes - capacity / 10;
+                int first = 0;
+                while (liveBytes > budget && first < offsets.size()) {
+                    liveBytes -= 4 + log.getInt(offsets.get(first));
+                    first++;
+                }
+                if (first > 0) {
+                    LOGGER.warn("cache log is full, dropping the " + first + " oldest records");
+                }
+                long compactedBytes = copyRecords(offsets.subList(first, offsets.size()), compactedChannel, 0);
+                compactedChannel.force(true);
+
+                lock.writeLock().lock();
+                try {
+                    // records that were put while we copied, the ones they overwrite are dropped when the compacted log is indexed. Like
+                    // puts to the log they are not synced
+                    now = System.currentTimeMillis();
+                    List<Integer> newOffsets = new ArrayList<>();
+                    for (int offset : liveOffsets()) {
+                        if (offset >= copiedUntil && log.getLong(offset + 4) > now) {
+                            newOffsets.add(offset);
+                        }
+                    }
+                    newOffsets.sort(null);
+                    copyRecords(newOffsets, compactedChannel, compactedBytes);
+
+                    int before = writePosition;
+                    channel.close();
+                    Files.move(compactedPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    open();
+                    LOGGER.info("compacted cache log from " + before + " to " + writePosition + " bytes");
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not compact cache log " + logPath, e);
+        }
+    }
+
+    /**
+     * Append the records to the compacted log as long as they fit.
+     *
+     * @return The size of the compacted log.
+     */
+    private long copyRecords(List<Integer> offsets, FileChannel compactedChannel, long compactedBytes) throws IOException {
+        for (int offset : offsets) {
+            int recordSize = 4 + log.getInt(offset);
+            if (compactedBytes + recordSize > capacity) {
+                break;
+            }
+            ByteBuffer record = log.duplicate();
+            record.position(offset).limit(offset + recordSize);
+            while (record.hasRemaining()) {
+                compactedChannel.write(record);
+            }
+            compactedBytes += recordSize;
+        }
+        return compactedBytes;
+    }
+
+    private List<Integer> liveOffsets() {
+        List<Integer> offsets = new ArrayList<>(usedSlots);
+        for (int i = 0; i < slots; i++) {
+            if (index.getLong(i * SLOT_SIZE) != 0) {
+                offsets.add((int) index.getLong(i * SLOT_SIZE + 8));
+            }
+        }
+        return offsets;
+    }
+
+    private String readKey(int offset) {
+        byte[] key = new byte[log.getInt(offset + 12)];
+        log.duplicate().position(offset + HEADER_SIZE).get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 64 bit FNV-1a, never 0 since that marks empty slots.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    static byte[] deflate(String json) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(json.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(json.length() / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            LOGGER.error("corrupt value in cache log", e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        compactionExecutor.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            log.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package cc.opensearch;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Counters, gauges and histograms of the search, exposed on /metrics in the Prometheus text format. Recording is lock free so it can be done on
+ * every request. All metrics are declared here so their names, types and help texts are in one place.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class Metrics {
+    public static final String STAGE_DURATION = "opensearch_stage_duration_seconds";
+    public static final String SEARCH_DURATION = "opensearch_search_duration_seconds";
+    public static final String SEARCH_TOKENS = "opensearch_search_tokens";
+    public static final String QUERY_CACHE_LOOKUPS = "opensearch_query_cache_lookups_total";
+    public static final String TEMPLATE_LOOKUPS = "opensearch_template_lookups_total";
+    public static final String LLM_REQUEST_DURATION = "opensearch_llm_request_duration_seconds";
+    public static final String LLM_TOKENS = "opensearch_llm_tokens";
+    public static final String UPSTREAM_REQUEST_DURATION = "opensearch_upstream_request_duration_seconds";
+    public static final String UPSTREAM_REQUESTS = "opensearch_upstream_requests_total";
+    public static final String WEBSOCKET_SESSIONS = "opensearch_websocket_sessions";
+    public static final String ADMISSION_REJECTIONS = "opensearch_admission_rejections_total";
+    public static final String COLD_SEARCHES = "opensearch_cold_searches";
+    public static final String PEER_CACHE_REQUESTS = "opensearch_peer_cache_requests_total";
+
+    /** in seconds, from a cache hit to a slow LLM */
+    private static final double[] LATENCY_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    private static final double[] TOKEN_BUCKETS = {100, 250, 500, 1000, 2000, 4000, 8000, 16000};
+
+    /** name => metric */
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    static class SingletonHolder {
+        static Metrics instance = new Metrics();
+    }
+
+    public static Metrics getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    /**
+     * A metric with all its label combinations.
+     */
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final double[] buckets;
+        private final DoubleSupplier gauge;
+
+        /** labels, e.g. stage="route" => series */
+        private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        private Family(String type, String help, double[] buckets, DoubleSupplier gauge) {
+            this.type = type;
+            this.help = help;
+            this.buckets = buckets;
+            this.gauge = gauge;
+        }
+    }
+
+    /**
+     * The values of one label combination. Counters only use the sum, histograms count per bucket (not cumulative).
+     */
+    private static class Series {
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+        private final LongAdder[] bucketCounts;
+
+        private Series(int buckets) {
+            bucketCounts = new LongAdder[buckets];
+            for (int i = 0; i < buckets; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+    }
+
+    private Metrics() {
+        histogram(STAGE_DURATION, "Duration of the stages of a search: cache, route, fetch and render.", LATENCY_BUCKETS);
+        histogram(SEARCH_DURATION, "Duration of whole searches by result: ok, unresolved, overloaded, error or cancelled.", LATENCY_BUCKETS);
+        histogram(SEARCH_TOKENS, "LLM tokens used per search.", TOKEN_BUCKETS);
+        counter(QUERY_CACHE_LOOKUPS, "Query cache lookups by the tier that answered: memory, store, similar or miss.");
+        counter(TEMPLATE_LOOKUPS, "HTML template lookups by the tier that answered: hand_crafted, memory, store or miss.");
+        histogram(LLM_REQUEST_DURATION, "Duration of LLM requests by provider and outcome.", LATENCY_BUCKETS);
+        histogram(LLM_TOKENS, "Tokens used per LLM request by provider.", TOKEN_BUCKETS);
+        histogram(UPSTREAM_REQUEST_DURATION, "Duration of API calls by domain, including retries.", LATENCY_BUCKETS);
+        counter(UPSTREAM_REQUESTS, "API calls by domain and outcome: ok, rejected_by_api, invalid_response, error, cancelled, circuit_open or bulkhead_full.");
+        gauge(WEBSOCKET_SESSIONS, "Open websocket sessions.", WebSocket::getOpenSessions);
+        counter(ADMISSION_REJECTIONS, "Requests we did not work on by reason: rate_limited or overloaded.");
+        counter(PEER_CACHE_REQUESTS, "Requests to the nodes that own cache keys by operation (get or put) and outcome: hit, miss, ok, rejected, dropped or error.");
+        gauge(COLD_SEARCHES, "Searches that are routing or calling APIs right now.", () -> AdmissionControl.getInstance().getColdSearches());
+    }
+
+    private void counter(String name, String help) {
+        families.put(name, new Family("counter", help, null, null));
+    }
+
+    private void histogram(String name, String help, double[] buckets) {
+        families.put(name, new Family("histogram", help, buckets, null));
+    }
+
+    /**
+     * Register a gauge whose value is read when the metrics are scraped.
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        families.put(name, new Family("gauge", help, null, value));
+    }
+
+    /**
+     * Count one occurrence.
+     *
+     * @param labels Label names and values, alternating.
+     */
+    public void increment(String name, String... labels) {
+        add(name, 1, labels);
+    }
+
+    public void add(String name, double value, String... labels) {
+        Series series = getSeries(name, labels);
+        series.sum.add(value);
+        series.count.increment();
+    }
+
+    public void observeMillis(String name, long millis, String... labels) {
+        observe(name, millis / 1000., labels);
+    }
+
+    public void observe(String name, double value, String... labels) {
+        Family family = families.get(name);
+        Series series = getSeries(family, labels);
+        series.sum.add(value);
+        series.count.increment();
+        for (int i = 0; i < family.buckets.length; i++) {
+            if (value <= family.buckets[i]) {
+                series.bucketCounts[i].increment();
+                return;
+            }
+        }
+    }
+
+    private Series getSeries(String name, String... labels) {
+        return getSeries(families.get(name), labels);
+    }
+
+    private Series getSeries(Family family, String... labels) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+        }
+        return family.series.computeIfAbsent(key.toString(), k -> new Series(family.buckets == null ? 0 : family.buckets.length));
+    }
+
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return All metrics in the Prometheus text format.
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        // sorted so the output is stable
+        for (Map.Entry<String, Family> entry : new TreeMap<>(families).entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            if (family.gauge != null) {
+                out.append(name).append(' ').append(format(family.gauge.getAsDouble())).append('\n');
+                continue;
+            }
+            for (Map.Entry<String, Series> seriesEntry : new TreeMap<>(family.series).entrySet()) {
+                String labels = seriesEntry.getKey();
+                Series series = seriesEntry.getValue();
+                if (family.buckets == null) {
+                    out.append(name).append(labels.isEmpty() ? "" : "{" + labels + "}").append(' ').append(format(series.sum.sum())).append('\n');
+                    continue;
+                }
+                String labelPrefix = labels.isEmpty() ? "" : labels + ",";
+                long cumulativeCount = 0;
+                for (int i = 0; i < family.buckets.length; i++) {
+                    cumulativeCount += series.bucketCounts[i].sum();
+                    out.append(name).append("_bucket{").append(labelPrefix).append("le=\"").append(format(family.buckets[i])).append("\"} ")
+                            .append(cumulativeCount).append('\n');
+                }
+                long count = series.count.sum();
+                out.append(name).append("_bucket{").append(labelPrefix).append("le=\"+Inf\"} ").append(count).append('\n');
+                String labelSuffix = labels.isEmpty() ? "" : "{" + labels + "}";
+                out.append(name).append("_sum").append(labelSuffix).append(' ').append(format(series.sum.sum())).append('\n');
+                out.append(name).append("_count").append(labelSuffix).append(' ').append(count).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+}
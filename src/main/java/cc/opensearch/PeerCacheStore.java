@@ -0,0 +1,502 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import ws.palladian.persistence.json.JsonObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache tier shared by several search nodes. Every key is owned by one node of a consistent-hash ring built from the static peer list, so
+ * a response or template generated on one node is found by all others: local misses ask the owner, and values of keys owned by another node
+ * are also sent to it. The owner answers from its local store only, requests are never forwarded.
+ * <p>
+ * Whatever a peer puts is served to users, so only the addresses of the peer list may connect and they must prove that they know the shared
+ * secret: the node sends 16 random bytes and the peer answers with their HMAC-SHA256 under the secret. Protocol, one request after the other on
+ * a persistent TCP connection. The node closes connections that were idle for a minute, the peers drop theirs after half of that instead of
+ * reusing them:
+ * <ul>
+ * <li>GET: byte 1 | string collection | string key => byte 0 (miss) or byte 1 | int length | deflated JSON</li>
+ * <li>PUT: byte 2 | string collection | string key | int length | deflated JSON => byte 1 (stored) or byte 0 (invalid value)</li>
+ * <li>string: int length | UTF-8 bytes</li>
+ * </ul>
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class PeerCacheStore implements CacheStore {
+    private static final Logger LOGGER = Logger.getLogger(PeerCacheStore.class);
+
+    private static final byte GET = 1;
+    private static final byte PUT = 2;
+    private static final byte MISS = 0;
+    private static final byte HIT = 1;
+    private static final byte STORED = 1;
+
+    /** we don't accept values larger than this from peers */
+    private static final int MAX_VALUE_BYTES = 64 * 1024 * 1024;
+
+    /** keys of queries can be long, but longer ones are only cached locally */
+    private static final int MAX_KEY_BYTES = 1024 * 1024;
+
+    /** we close connections of peers that did not send a request for this long, they open a new one */
+    private static final int IDLE_TIMEOUT_MILLIS = 60_000;
+
+    /** idle connections we keep per peer */
+    private static final int MAX_IDLE_CONNECTIONS = 16;
+
+    private static final int CHALLENGE_BYTES = 16;
+
+    private final CacheStore localStore;
+
+    /** host:port of this node as it appears in the peer list */
+    private final String self;
+
+    /** ring position => peer, every peer has several positions so the keys are spread evenly */
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    private final int timeoutMillis;
+
+    /** how long connections may be idle, the peers use theirs only for half of it so the other side doesn't close them under us */
+    private final int idleTimeoutMillis;
+
+    /** proves to the peers that we are one of them */
+    private final byte[] secret;
+
+    /** the addresses of the peers, nobody else may connect */
+    private final Set<InetAddress> peerAddresses = new HashSet<>();
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** how long we don't ask a peer again after it failed */
+    private final long retryMillis;
+
+    /** peer => connections that are not in use */
+    private final Map<String, BlockingQueue<Connection>> idleConnections = new ConcurrentHashMap<>();
+
+    /** peer => until when we don't ask it */
+    private final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+
+    private final ServerSocket serverSocket;
+
+    /** the connections of the peers we serve, they are closed with the store */
+    private final Set<Socket> peerConnections = ConcurrentHashMap.newKeySet();
+
+    /** serves the connections of the peers */
+    private final ExecutorService serverExecutor;
+
+    /** sends values to their owners without blocking the caller */
+    private final ThreadPoolExecutor replicationExecutor;
+
+    private volatile boolean closed;
+
+    /**
+     * A request and its answer, written and read on a connection to a peer.
+     */
+    private interface Exchange<T> {
+        T run(DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        /** when the last exchange on the connection finished */
+        private long lastUsed = System.currentTimeMillis();
+
+        private Connection(String peer, int timeoutMillis, byte[] secret) throws IOException {
+            socket = new Socket();
+            socket.connect(toAddress(peer), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            in.readFully(challenge);
+            out.write(sign(secret, challenge));
+            out.flush();
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing we can do
+            }
+        }
+    }
+
+    /**
+     * @param localStore The store of this node, it holds the keys this node owns and copies of the ones it asked other nodes for.
+     * @param peers All nodes as host:port, including this one. All nodes must have the same list.
+     * @param self This node as it appears in the list, the peer protocol is served on its port.
+     * @param secret The secret all nodes share, only nodes that know it may get and put values.
+     * @param virtualNodes Positions of every peer on the ring.
+     * @param timeoutMillis How long we wait for a peer before we treat it as a miss.
+     * @param retryMillis How long we don't ask a peer again after it failed.
+     */
+    public PeerCacheStore(CacheStore localStore, List<String> peers, String self, String secret, int virtualNodes, int timeoutMillis, long retryMillis)
+            throws IOException {
+        this(localStore, peers, self, secret, virtualNodes, timeoutMillis, retryMillis, IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idleTimeoutMillis How long connections may be idle, all nodes must use the same.
+     */
+    PeerCacheStore(CacheStore localStore, List<String> peers, String self, String secret, int virtualNodes, int timeoutMillis, long retryMillis,
+            int idleTimeoutMillis) throws IOException {
+        if (!peers.contains(self)) {
+            throw new IllegalArgumentException("this node " + self + " is not in the peer list " + peers);
+        }
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("the peers need a shared secret");
+        }
+        this.localStore = localStore;
+        this.self = self;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.timeoutMillis = timeoutMillis;
+        this.retryMillis = retryMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        for (String peer : peers) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+            peerAddresses.addAll(Arrays.asList(InetAddress.getAllByName(toAddress(peer).getHostString())));
+        }
+
+        serverExecutor = Executors.newCachedThreadPool(daemonThreads("peer-cache-server"));
+        replicationExecutor = new ThreadPoolExecutor(1, 4, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(1000), daemonThreads("peer-cache-replication"));
+
+        InetSocketAddress address = toAddress(self);
+        serverSocket = new ServerSocket();
+        // a restarted node gets its port back while connections of the old one are still closing
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName(address.getHostString()), address.getPort()), 128);
+        serverExecutor.execute(this::accept);
+        LOGGER.info("peer cache listening on " + self + ", peers " + peers);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static InetSocketAddress toAddress(String peer) {
+        int colon = peer.lastIndexOf(':');
+        return new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+    }
+
+    /**
+     * @return The first 8 bytes of the MD5 hash, FNV spreads similar strings like "host:port#1" too unevenly over the ring.
+     */
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash << 8 | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has MD5", e);
+        }
+    }
+
+    private static byte[] sign(byte[] secret, byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("every JVM has HmacSHA256", e);
+        }
+    }
+
+    /**
+     * @return The peer that owns the key.
+     */
+    String getOwner(String collection, String key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(collection + "\0" + key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    @Override
+    public JsonObject get(String collection, String key) {
+        JsonObject value = localStore.get(collection, key);
+        if (value != null) {
+            return value;
+        }
+        String owner = getOwner(collection, key);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (owner.equals(self) || isDown(owner) || keyBytes.length > MAX_KEY_BYTES) {
+            return null;
+        }
+        String json = exchange(owner, "get", (in, out) -> {
+            out.writeByte(GET);
+            writeString(out, collection.getBytes(StandardCharsets.UTF_8));
+            writeString(out, keyBytes);
+            out.flush();
+            if (in.readByte() == MISS) {
+                Metrics.getInstance().increment(Metrics.PEER_CACHE_REQUESTS, "operation", "get", "outcome", "miss");
+                return null;
+            }
+            Metrics.getInstance().increment(Metrics.PEER_CACHE_REQUESTS, "operation", "get", "outcome", "hit");
+            return MappedLogCacheStore.inflate(readValue(in));
+        });
+        value = json != null ? JsonObject.tryParse(json) : null;
+        if (value != null) {
+            // keep a copy so the next lookup does not leave this node
+            localStore.put(collection, key, value);
+        }
+        return value;
+    }
+
+    @Override
+    public void put(String collection, String key, JsonObject value) {
+        localStore.put(collection, key, value);
+        String owner = getOwner(collection, key);
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (owner.equals(self) || isDown(owner) || keyBytes.length > MAX_KEY_BYTES) {
+            return;
+        }
+        // serialize now, the caller may change the value afterwards
+        byte[] bytes = MappedLogCacheStore.deflate(value.toString());
+        try {
+            replicationExecutor.execute(() -> {
+                Boolean sent = exchange(owner, "put", (in, out) -> {
+                    out.writeByte(PUT);
+                    writeString(out, collection.getBytes(StandardCharsets.UTF_8));
+                    writeString(out, keyBytes);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    out.flush();
+                    // without the answer we wouldn't know whether the owner got the value
+                    return in.readByte() == STORED;
+                });
+                if (sent != null) {
+                    Metrics.getInstance().increment(Metrics.PEER_CACHE_REQUESTS, "operation", "put", "outcome", sent ? "ok" : "rejected");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the owner is too slow, it will ask for the value if it needs it
+            Metrics.getInstance().increment(Metrics.PEER_CACHE_REQUESTS, "operation", "put", "outcome", "dropped");
+        }
+    }
+
+    private boolean isDown(String peer) {
+        Long until = downUntil.get(peer);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    /**
+     * Run the exchange on an idle connection to the peer or a new one. If the peer can't be reached it is not asked again for a while.
+     *
+     * @return The result of the exchange or null if it failed.
+     */
+    private <T> T exchange(String peer, String operation, Exchange<T> exchange) {
+        BlockingQueue<Connection> idle = idleConnections.computeIfAbsent(peer, p -> new ArrayBlockingQueue<>(MAX_IDLE_CONNECTIONS));
+        while (true) {
+            Connection connection = idle.poll();
+            if (connection != null && connection.lastUsed < System.currentTimeMillis() - idleTimeoutMillis / 2) {
+                // the peer closes it soon or has closed it already
+                connection.close();
+                continue;
+            }
+            boolean pooled = connection != null;
+            try {
+                if (!pooled) {
+                    connection = new Connection(peer, timeoutMillis, secret);
+                }
+                T result = exchange.run(connection.in, connection.out);
+                connection.lastUsed = System.currentTimeMillis();
+                if (!idle.offer(connection)) {
+                    connection.close();
+                }
+                return result;
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
+                }
+                if (pooled && (e instanceof EOFException || e instanceof SocketException)) {
+                    // the peer closed the idle connection, e.g. because it restarted. A timeout is no reason to try again, the peer is slow
+                    continue;
+                }
+                downUntil.put(peer, System.currentTimeMillis() + retryMillis);
+                Metrics.getInstance().increment(Metrics.PEER_CACHE_REQUESTS, "operation", operation, "outcome", "error");
+                LOGGER.warn("peer " + peer + " failed, not asking it for " + retryMillis + "ms: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_VALUE_BYTES) {
+            throw new IOException("invalid value length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeString(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_KEY_BYTES) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!peerAddresses.contains(socket.getInetAddress())) {
+                    LOGGER.warn("refused peer cache connection from " + socket.getRemoteSocketAddress() + ", it is not in the peer list");
+                    socket.close();
+                    continue;
+                }
+                serverExecutor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    LOGGER.error("could not accept peer connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of a peer from the local store until it closes the connection.
+     */
+    private void serve(Socket socket) {
+        peerConnections.add(socket);
+        try (Socket s = socket) {
+            // an idle peer must not keep the thread forever
+            s.setSoTimeout(idleTimeoutMillis);
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            byte[] challenge = new byte[CHALLENGE_BYTES];
+            random.nextBytes(challenge);
+            out.write(challenge);
+            out.flush();
+            byte[] answer = new byte[sign(secret, challenge).length];
+            in.readFully(answer);
+            if (!MessageDigest.isEqual(answer, sign(secret, challenge))) {
+                LOGGER.warn("refused peer cache connection from " + s.getRemoteSocketAddress() + ", it does not know the secret");
+                return;
+            }
+            while (!closed) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+                String collection = readString(in);
+                String key = readString(in);
+                if (operation == GET) {
+                    JsonObject value = localStore.get(collection, key);
+                    if (value == null) {
+                        out.writeByte(MISS);
+                    } else {
+                        byte[] bytes = MappedLogCacheStore.deflate(value.toString());
+                        out.writeByte(HIT);
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.flush();
+                } else if (operation == PUT) {
+                    String json = MappedLogCacheStore.inflate(readValue(in));
+                    JsonObject value = json != null ? JsonObject.tryParse(json) : null;
+                    if (value != null) {
+                        localStore.put(collection, key, value);
+                    }
+                    out.writeByte(value != null ? STORED : MISS);
+                    out.flush();
+                } else {
+                    LOGGER.warn("unknown peer cache operation " + operation + " from " + s.getRemoteSocketAddress());
+                    return;
+                }
+            }
+        } catch (SocketException | SocketTimeoutException | EOFException e) {
+            // the peer went away or was idle for too long
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.warn("peer connection failed", e);
+            }
+        } finally {
+            peerConnections.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : peerConnections) {
+            socket.close();
+        }
+        serverExecutor.shutdownNow();
+        try {
+            // the port is only released once the thread that accepts connections is gone
+            serverExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        replicationExecutor.shutdown();
+        for (BlockingQueue<Connection> connections : idleConnections.values()) {
+            Connection connection;
+            while ((connection = connections.poll()) != null) {
+                connection.close();
+            }
+        }
+        localStore.close();
+    }
+}
@@ -0,0 +1,113 @@
+package cc.opensearch;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress messages of a search, e.g. "Using API: ...". Several websocket sessions can follow the same progress, sessions that attach late get
+ * the messages they missed first.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class Progress {
+    /** the first message of a search tells the client its trace id, so a search can be found in the logs */
+    public static final String TRACE_ID_MESSAGE = "###TRACE_ID###";
+
+    private final List<String> messages = new ArrayList<>();
+    private final List<Session> sessions = new ArrayList<>();
+
+    /** the LLM tokens that were used for the search */
+    private final AtomicInteger usedTokens = new AtomicInteger();
+
+    /** identifies the search in the logs */
+    private final String traceId = Long.toHexString(ThreadLocalRandom.current().nextLong() & 0xffffffffffffL);
+
+    public Progress() {
+    }
+
+    public Progress(Session session) {
+        attach(session);
+    }
+
+    /**
+     * Let the session follow this progress. All messages that were sent so far are replayed.
+     */
+    public synchronized void attach(Session session) {
+        if (session == null) {
+            return;
+        }
+        for (String message : messages) {
+            send(session, message);
+        }
+        sessions.add(session);
+    }
+
+    /**
+     * Let all sessions of the other progress follow this progress too.
+     */
+    public void attach(Progress other) {
+        List<Session> otherSessions;
+        synchronized (other) {
+            otherSessions = new ArrayList<>(other.sessions);
+        }
+        for (Session session : otherSessions) {
+            attach(session);
+        }
+    }
+
+    /**
+     * Stop sending the messages of this progress to the sessions of the other progress, e.g. because their search was cancelled.
+     */
+    public void detach(Progress other) {
+        List<Session> otherSessions;
+        synchronized (other) {
+            otherSessions = new ArrayList<>(other.sessions);
+        }
+        synchronized (this) {
+            sessions.removeAll(otherSessions);
+        }
+    }
+
+    /**
+     * @return True if at least one session follows this progress.
+     */
+    public synchronized boolean isFollowed() {
+        return !sessions.isEmpty();
+    }
+
+    public AtomicInteger getUsedTokens() {
+        return usedTokens;
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public synchronized void send(String message) {
+        messages.add(message);
+        for (Session session : sessions) {
+            send(session, message);
+        }
+    }
+
+    /**
+     * The message is only queued, so holding the lock keeps the order of the messages without one slow client holding up the searches
+     * that follow this progress.
+     */
+    private void send(Session session, String message) {
+        if (!session.isOpen()) {
+            return;
+        }
+        WebSocketProtocol protocol = WebSocketProtocol.get(session);
+        if (protocol != null) {
+            protocol.sendMessage(message);
+        } else {
+            session.getRemote().sendString(message, WebSocketProtocol.LOG_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package cc.opensearch;
+
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+/**
+ * Helps keeping the prompts we send to the LLM small: estimates their size in tokens and describes API responses by their structure and sample
+ * values instead of sending all the data.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class PromptBuilder {
+    /** the summary does not go deeper than this */
+    private static final int MAX_SUMMARY_DEPTH = 8;
+
+    /** sample strings are cut after this many characters */
+    private static final int MAX_SAMPLE_LENGTH = 60;
+
+    private PromptBuilder() {
+    }
+
+    /**
+     * A rough estimate of the number of tokens of a text, English text has about four characters per token.
+     */
+    public static int estimateTokens(String text) {
+        if (text == null) {
+            return 0;
+        }
+        return (text.length() + 3) / 4;
+    }
+
+    /**
+     * Describe the structure of the JSON with one line per field: its type and a sample value. Arrays are described by their first element.
+     * The deeper levels are left out until the summary fits the token budget.
+     */
+    public static String summarize(JsonObject json, int maxTokens) {
+        String summary = "";
+        for (int maxDepth = MAX_SUMMARY_DEPTH; maxDepth > 0; maxDepth--) {
+            StringBuilder out = new StringBuilder();
+            summarizeObject(json, 0, maxDepth, out);
+            summary = out.toString();
+            if (estimateTokens(summary) <= maxTokens) {
+                return summary;
+            }
+        }
+        // even the first level is too much, e.g. an object with thousands of keys
+        return summary.substring(0, Math.min(summary.length(), maxTokens * 4));
+    }
+
+    private static void summarizeObject(JsonObject json, int depth, int maxDepth, StringBuilder out) {
+        for (String key : json.keySet()) {
+            summarize(key, json.get(key), depth, maxDepth, out);
+        }
+    }
+
+    private static void summarize(String name, Object value, int depth, int maxDepth, StringBuilder out) {
+        indent(depth, out);
+        out.append(name).append(": ");
+        if (value instanceof JsonObject) {
+            JsonObject object = (JsonObject) value;
+            out.append("object");
+            if (depth + 1 < maxDepth && !object.keySet().isEmpty()) {
+                out.append('\n');
+                summarizeObject(object, depth + 1, maxDepth, out);
+            } else {
+                out.append(" with ").append(object.keySet().size()).append(" fields\n");
+            }
+        } else if (value instanceof JsonArray) {
+            JsonArray array = (JsonArray) value;
+            out.append("array of ").append(array.size());
+            if (array.size() == 0) {
+                out.append('\n');
+                return;
+            }
+            Object first = array.get(0);
+            if (first instanceof JsonObject || first instanceof JsonArray) {
+                out.append(' ').append(typeOf(first)).append("s\n");
+                if (depth + 1 < maxDepth) {
+                    summarize("[0]", first, depth + 1, maxDepth, out);
+                }
+            } else {
+                out.append(' ').append(typeOf(first)).append("s, e.g. ").append(sample(first)).append('\n');
+            }
+        } else if (value == null) {
+            out.append("null\n");
+        } else {
+            out.append(typeOf(value)).append(", e.g. ").append(sample(value)).append('\n');
+        }
+    }
+
+    private static String typeOf(Object value) {
+        if (value instanceof JsonObject) {
+            return "object";
+        } else if (value instanceof JsonArray) {
+            return "array";
+        } else if (value instanceof String) {
+            return "string";
+        } else if (value instanceof Number) {
+            return "number";
+        } else if (value instanceof Boolean) {
+            return "boolean";
+        }
+        return "null";
+    }
+
+    private static String sample(Object value) {
+        if (value instanceof String) {
+            String string = (String) value;
+            if (string.length() > MAX_SAMPLE_LENGTH) {
+                string = string.substring(0, MAX_SAMPLE_LENGTH) + "…";
+            }
+            return "\"" + string.replace("\n", " ") + "\"";
+        }
+        return String.valueOf(value);
+    }
+
+    private static void indent(int depth, StringBuilder out) {
+        for (int i = 0; i < depth; i++) {
+            out.append("  ");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A two-tier cache for API responses. Queries are looked up by their canonical key (see {@link QueryNormalizer}) in a bounded in-memory LRU
+ * tier and then in the {@link CacheStore}. If neither has an exact match, the most similar query in memory is used if its similarity is above
+ * the configured threshold.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class QueryCache {
+    private static final Logger LOGGER = Logger.getLogger(QueryCache.class);
+
+    private final CacheStore cacheStore;
+    private final String collection;
+
+    /** minimum cosine similarity of two query vectors to treat the queries as the same */
+    private final double similarityThreshold;
+
+    /** canonical key => entry, in access order so the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, Entry> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong similarHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Entry {
+        private final float[] vector;
+        private final JsonObject response;
+        private final long expires;
+
+        private Entry(float[] vector, JsonObject response) {
+            this.vector = vector;
+            this.response = response;
+            this.expires = response.tryGetLong("expires", 0L);
+        }
+
+        private boolean isExpired(long now) {
+            return expires <= now;
+        }
+    }
+
+    public QueryCache(CacheStore cacheStore, String collection, int maxSize, double similarityThreshold) {
+        this.cacheStore = cacheStore;
+        this.collection = collection;
+        this.similarityThreshold = similarityThreshold;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get a cached, non-expired response for the query or null if there is none.
+     */
+    public JsonObject get(String query) {
+        String key = QueryNormalizer.canonicalKey(query);
+        long now = System.currentTimeMillis();
+
+        // 1. exact match in memory
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(now)) {
+                    memoryHits.incrementAndGet();
+                    Metrics.getInstance().increment(Metrics.QUERY_CACHE_LOOKUPS, "tier", "memory");
+                    return entry.response;
+                }
+                memory.remove(key);
+            }
+        }
+
+        // 2. exact match on disk
+        JsonObject response = cacheStore.get(collection, key);
+        if (response != null) {
+            diskHits.incrementAndGet();
+            Metrics.getInstance().increment(Metrics.QUERY_CACHE_LOOKUPS, "tier", "store");
+            remember(key, response);
+            return response;
+        }
+
+        // 3. nearest neighbour in memory
+        float[] vector = QueryNormalizer.vectorize(query);
+        Entry bestEntry = null;
+        double bestSimilarity = similarityThreshold;
+        synchronized (memory) {
+            for (Entry entry : memory.values()) {
+                if (entry.isExpired(now)) {
+                    continue;
+                }
+                double similarity = QueryNormalizer.similarity(vector, entry.vector);
+                if (similarity >= bestSimilarity) {
+                    bestSimilarity = similarity;
+                    bestEntry = entry;
+                }
+            }
+        }
+        if (bestEntry != null) {
+            similarHits.incrementAndGet();
+            Metrics.getInstance().increment(Metrics.QUERY_CACHE_LOOKUPS, "tier", "similar");
+            LOGGER.info("found similar cached query for \"" + query + "\": " + bestEntry.response.tryGetString("_id") + " (" + bestSimilarity + ")");
+            return bestEntry.response;
+        }
+
+        misses.incrementAndGet();
+        Metrics.getInstance().increment(Metrics.QUERY_CACHE_LOOKUPS, "tier", "miss");
+        return null;
+    }
+
+    /**
+     * Get the cached, non-expired response for exactly this query without counting it as a hit or looking for similar queries.
+     */
+    public JsonObject peek(String query) {
+        String key = QueryNormalizer.canonicalKey(query);
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                return entry.response;
+            }
+        }
+        return cacheStore.get(collection, key);
+    }
+
+    /**
+     * Cache a response. The response must already contain the "expires" field, the "_id" is set to the canonical key of the query.
+     */
+    public void put(String query, JsonObject response) {
+        String key = QueryNormalizer.canonicalKey(query);
+        response.put("_id", key);
+        cacheStore.put(collection, key, response);
+        remember(key, response);
+    }
+
+    private void remember(String key, JsonObject response) {
+        Entry entry = new Entry(QueryNormalizer.vectorize(key), response);
+        long now = System.currentTimeMillis();
+        synchronized (memory) {
+            memory.put(key, entry);
+            // drop expired entries so they don't take up the slots of live ones
+            for (Iterator<Entry> iterator = memory.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().isExpired(now)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getSimilarHits() {
+        return similarHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("memoryHits", getMemoryHits());
+        statistics.put("diskHits", getDiskHits());
+        statistics.put("similarHits", getSimilarHits());
+        statistics.put("misses", getMisses());
+        synchronized (memory) {
+            statistics.put("memorySize", memory.size());
+        }
+        return statistics;
+    }
+}
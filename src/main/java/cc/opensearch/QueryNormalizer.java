@@ -0,0 +1,106 @@
+package cc.opensearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Normalizes queries so that paraphrases like "rum cocktails" and "cocktails with rum" end up with the same cache key and similar vectors.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public final class QueryNormalizer {
+    /** number of dimensions of the hashed query vector */
+    public static final int VECTOR_DIMENSIONS = 512;
+
+    private static final Set<String> STOPWORDS = new HashSet<>(Arrays.asList("a", "about", "an", "and", "any", "are", "as", "at", "be", "by", "can", "could", "do", "does",
+            "find", "for", "from", "get", "give", "have", "how", "i", "in", "is", "it", "me", "my", "of", "on", "or", "please", "show", "some", "tell", "that", "the", "there",
+            "this", "to", "want", "was", "what", "when", "where", "which", "who", "why", "will", "with", "would", "you"));
+
+    private QueryNormalizer() {
+    }
+
+    /**
+     * Lowercase the query, strip punctuation and remove stopwords. The order of the tokens is kept.
+     */
+    public static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        if (query == null) {
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+        String lowerCase = query.toLowerCase(Locale.ROOT);
+        for (int i = 0; i <= lowerCase.length(); i++) {
+            char c = i < lowerCase.length() ? lowerCase.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (token.length() > 0) {
+                String t = token.toString();
+                if (!STOPWORDS.contains(t)) {
+                    tokens.add(t);
+                }
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * The canonical key is the sorted list of query tokens, so word order, case, punctuation and filler words do not matter.
+     */
+    public static String canonicalKey(String query) {
+        List<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            // only stopwords, fall back to the lowercased query so we don't collapse everything into one key
+            return query == null ? "" : query.toLowerCase(Locale.ROOT).trim();
+        }
+        tokens.sort(null);
+        return String.join(" ", tokens);
+    }
+
+    /**
+     * Compute an L2-normalized hashed vector from the query tokens and their character trigrams. Trigrams make the vector robust against
+     * inflections ("cocktail" vs. "cocktails").
+     */
+    public static float[] vectorize(String query) {
+        float[] vector = new float[VECTOR_DIMENSIONS];
+        for (String token : tokenize(query)) {
+            addFeature(vector, token, 1.f);
+            String padded = "^" + token + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                addFeature(vector, padded.substring(i, i + 3), 0.5f);
+            }
+        }
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        if (norm > 0) {
+            float length = (float) Math.sqrt(norm);
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= length;
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Cosine similarity of two vectors created by {@link #vectorize(String)}. Since they are normalized, this is the dot product.
+     */
+    public static double similarity(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static void addFeature(float[] vector, String feature, float weight) {
+        int hash = feature.hashCode() * 0x9E3779B9;
+        vector[(hash >>> 1) % VECTOR_DIMENSIONS] += (hash & 1) == 0 ? weight : -weight;
+    }
+}
@@ -0,0 +1,260 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.HttpOutput;
+import spark.Request;
+import spark.Response;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static spark.Spark.halt;
+
+/**
+ * Serves the stored responses (data/response[id].json) without copying them through the heap. Every file version is memory-mapped once,
+ * hashed for its ETag and compressed to a .gz file next to it; requests are then answered from the mapped buffers, with a 304 if the client
+ * has the version already. A .br file next to the response is served to clients that accept Brotli, the JDK has no encoder for it so it has to
+ * be written by an external tool.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class ResponseFiles {
+    private static final Logger LOGGER = Logger.getLogger(ResponseFiles.class);
+
+    private final Path directory;
+
+    /** how long clients may cache responses that have no "expires" field */
+    private final long defaultMaxAgeMillis;
+
+    /** smaller files are not worth compressing */
+    private final int minCompressBytes;
+
+    /** file name => mapped versions, in access order so the eldest entry is the least recently used one */
+    private final LinkedHashMap<String, ResponseFile> files;
+
+    static class SingletonHolder {
+        static ResponseFiles instance = new ResponseFiles();
+    }
+
+    public static ResponseFiles getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    /**
+     * One encoding of a response file.
+     */
+    private static class Variant {
+        private final String encoding;
+        private final MappedByteBuffer content;
+        private final String etag;
+
+        private Variant(String encoding, MappedByteBuffer content, String etag) {
+            this.encoding = encoding;
+            this.content = content;
+            this.etag = etag;
+        }
+    }
+
+    /**
+     * One version of a response file, replaced as soon as the file changes.
+     */
+    private static class ResponseFile {
+        private final long lastModified;
+        private final long size;
+        private final String etag;
+        private final long revalidate;
+        private final long expires;
+        private final Variant identity;
+        private final Variant gzip;
+        private final Variant brotli;
+
+        private ResponseFile(long lastModified, long size, String etag, long revalidate, long expires, Variant identity, Variant gzip, Variant brotli) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.etag = etag;
+            this.revalidate = revalidate;
+            this.expires = expires;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+    }
+
+    private ResponseFiles() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        directory = Paths.get(config.getString("responses.directory", "data"));
+        defaultMaxAgeMillis = TimeUnit.SECONDS.toMillis(config.getLong("responses.max_age_seconds", 3600));
+        minCompressBytes = config.getInt("responses.min_compress_bytes", 1024);
+        int maxMappedFiles = config.getInt("responses.max_mapped_files", 1000);
+        files = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResponseFile> eldest) {
+                // the mapping is released once the buffer is garbage collected
+                return size() > maxMappedFiles;
+            }
+        };
+    }
+
+    /**
+     * Answer the request with the response file, halts with a 404 if there is none.
+     *
+     * @param responseId The id of the response, must be a safe file name.
+     */
+    public String serve(Request request, Response response, String responseId) throws IOException {
+        ResponseFile file = get("response" + responseId + ".json");
+        if (file == null) {
+            throw halt(404);
+        }
+
+        String acceptEncoding = request.headers("Accept-Encoding");
+        Variant variant = file.identity;
+        if (file.brotli != null && HttpCaching.accepts(acceptEncoding, "br")) {
+            variant = file.brotli;
+        } else if (file.gzip != null && HttpCaching.accepts(acceptEncoding, "gzip")) {
+            variant = file.gzip;
+        }
+
+        response.type("application/json");
+        response.header("ETag", variant.etag);
+        response.header("Last-Modified", HttpCaching.httpDate(file.lastModified));
+        response.header("Vary", "Accept-Encoding");
+        long now = System.currentTimeMillis();
+        if (file.expires > 0) {
+            response.header("Cache-Control", HttpCaching.cacheControl(file.revalidate, file.expires, now));
+        } else {
+            response.header("Cache-Control", HttpCaching.cacheControl(now + defaultMaxAgeMillis, now + defaultMaxAgeMillis, now));
+        }
+
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (HttpCaching.isNotModified(ifNoneMatch, file.etag)
+                || ifNoneMatch == null && HttpCaching.isNotModifiedSince(request.headers("If-Modified-Since"), file.lastModified)) {
+            response.status(304);
+            return "";
+        }
+
+        if (variant.encoding != null) {
+            response.header("Content-Encoding", variant.encoding);
+        }
+        response.raw().setContentLengthLong(variant.content.capacity());
+        OutputStream out = response.raw().getOutputStream();
+        ByteBuffer content = variant.content.duplicate();
+        if (out instanceof HttpOutput) {
+            // Jetty writes the mapped buffer to the socket without copying it into its own buffers
+            ((HttpOutput) out).sendContent(content);
+        } else {
+            Channels.newChannel(out).write(content);
+            out.flush();
+        }
+        // the response is committed, Spark doesn't write the body anymore
+        return "";
+    }
+
+    /**
+     * @return The current version of the file, mapped and compressed, or null if the file does not exist.
+     */
+    private ResponseFile get(String fileName) throws IOException {
+        Path path = directory.resolve(fileName);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        synchronized (files) {
+            ResponseFile file = files.get(fileName);
+            if (file != null && file.lastModified == lastModified && file.size == attributes.size()) {
+                return file;
+            }
+        }
+
+        // two requests for a new version might both map it, that's cheaper than holding the lock while we read the file
+        ResponseFile file = load(path, lastModified, attributes.size());
+        synchronized (files) {
+            files.put(fileName, file);
+        }
+        return file;
+    }
+
+    private ResponseFile load(Path path, long lastModified, long size) throws IOException {
+        MappedByteBuffer content = map(path);
+        String etag = HttpCaching.etag(content);
+
+        // the cached responses know how long they are fresh, we need that once per version, not per request
+        long revalidate = 0;
+        long expires = 0;
+        JsonObject responseJson = JsonObject.tryParse(StandardCharsets.UTF_8.decode(content.duplicate()).toString());
+        if (responseJson != null) {
+            expires = responseJson.tryGetLong("expires", 0L);
+            revalidate = responseJson.tryGetLong("revalidate", expires);
+        }
+
+        Variant gzip = null;
+        if (size >= minCompressBytes) {
+            Path gzipPath = path.resolveSibling(path.getFileName() + ".gz");
+            if (!isUpToDate(gzipPath, lastModified)) {
+                compress(content, gzipPath);
+            }
+            gzip = new Variant("gzip", map(gzipPath), HttpCaching.etag(etag, "gzip"));
+        }
+        Variant brotli = null;
+        Path brotliPath = path.resolveSibling(path.getFileName() + ".br");
+        if (isUpToDate(brotliPath, lastModified)) {
+            brotli = new Variant("br", map(brotliPath), HttpCaching.etag(etag, "br"));
+        }
+
+        LOGGER.debug("mapped " + path + " (" + size + " bytes, gzip " + (gzip != null) + ", brotli " + (brotli != null) + ")");
+        return new ResponseFile(lastModified, size, etag, revalidate, expires, new Variant(null, content, etag), gzip, brotli);
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * @return True if the compressed file exists and was written after the response file was last changed.
+     */
+    private static boolean isUpToDate(Path compressedPath, long lastModified) throws IOException {
+        try {
+            return Files.getLastModifiedTime(compressedPath).toMillis() >= lastModified;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    private static void compress(ByteBuffer content, Path gzipPath) throws IOException {
+        // write to a temporary file first so no request maps a half written file
+        Path temporaryPath = Files.createTempFile(gzipPath.toAbsolutePath().getParent(), gzipPath.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(temporaryPath), 8192)) {
+                Channels.newChannel(out).write(content.duplicate());
+            }
+            Files.move(temporaryPath, gzipPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryPath);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.eclipse.jetty.websocket.api.Session;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Runs a search as a chain of asynchronous stages (route => fetch => render) so that the Jetty threads that receive the requests don't wait for
+ * the LLM and the APIs. Every stage has its own timeout and a running search can be cancelled, e.g. when the websocket is closed.
+ * Once the route is known, the HTML template is prepared in parallel to the fetch stage.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class SearchPipeline {
+    private static final Logger LOGGER = Logger.getLogger(SearchPipeline.class);
+
+    private final ExecutorService executor;
+
+    /** canonical query key => route and fetch stages that are currently running for it */
+    private final SingleFlight<String, JsonObject> queryFlights = new SingleFlight<>();
+
+    private final long routeTimeoutSeconds;
+    private final long fetchTimeoutSeconds;
+    private final long renderTimeoutSeconds;
+
+    static class SingletonHolder {
+        static SearchPipeline instance = new SearchPipeline();
+    }
+
+    public static SearchPipeline getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    /**
+     * A running search. Cancelling it cancels the stage that is currently running and prevents all further stages.
+     */
+    public static class SearchTask {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private volatile CompletableFuture<?> currentStage;
+        private final String traceId;
+
+        /** until when the rendered page is fresh and until when it may be served stale, 0 if it must not be cached */
+        private volatile long revalidate;
+        private volatile long expires;
+
+        /** the template and the data of the page, for clients that bind the data themselves */
+        private volatile HtmlRenderer.Rendering rendering;
+
+        private SearchTask(String traceId) {
+            this.traceId = traceId;
+        }
+
+        public CompletableFuture<String> getResult() {
+            return result;
+        }
+
+        public void cancel() {
+            result.cancel(true);
+            CompletableFuture<?> stage = currentStage;
+            if (stage != null) {
+                stage.cancel(true);
+            }
+        }
+
+        public boolean isCancelled() {
+            return result.isCancelled();
+        }
+
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public long getRevalidate() {
+            return revalidate;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public HtmlRenderer.Rendering getRendering() {
+            return rendering;
+        }
+    }
+
+    private SearchPipeline() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        routeTimeoutSeconds = config.getLong("pipeline.timeout.route_seconds", 60);
+        fetchTimeoutSeconds = config.getLong("pipeline.timeout.fetch_seconds", 30);
+        renderTimeoutSeconds = config.getLong("pipeline.timeout.render_seconds", 180);
+        executor = createExecutor(config.getInt("pipeline.max_threads", 2000));
+    }
+
+    /**
+     * Use virtual threads if the JVM has them (Java 21+), otherwise fall back to a pool of platform threads that grows on demand.
+     */
+    private static ExecutorService createExecutor(int maxThreads) {
+        try {
+            ExecutorService executorService = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.info("search pipeline runs on virtual threads");
+            return executorService;
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("virtual threads not available, search pipeline runs on up to " + maxThreads + " platform threads");
+            AtomicInteger threadNumber = new AtomicInteger();
+            return new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "search-pipeline-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Start a search. The result completes with the rendered HTML or null if the query could not be resolved.
+     */
+    public SearchTask search(String query, Session session) {
+        return search(query, session, true);
+    }
+
+    /**
+     * @param recordQuery Whether the query counts for its popularity, replayed queries don't.
+     */
+    public SearchTask search(String query, Session session, boolean recordQuery) {
+        long start = System.currentTimeMillis();
+        Searcher searcher = Searcher.getInstance();
+        if (recordQuery) {
+            CacheWarmer.getInstance().recordQuery(query);
+        }
+        Progress progress = new Progress(session);
+        String traceId = progress.getTraceId();
+        progress.send(Progress.TRACE_ID_MESSAGE + traceId);
+        SearchTask task = new SearchTask(traceId);
+
+        stage(task, "cache", traceId, () -> searcher.getCachedResponse(query, progress), routeTimeoutSeconds).thenCompose(cachedResponse -> {
+            if (cachedResponse != null) {
+                return CompletableFuture.completedFuture(cachedResponse);
+            }
+            CompletableFuture<JsonObject> flightResult = resolve(query, progress, traceId, route -> true);
+            task.currentStage = flightResult;
+            if (task.isCancelled()) {
+                flightResult.cancel(true);
+            }
+            return flightResult;
+        }).thenCompose(apiResponse -> {
+            if (apiResponse == null) {
+                return CompletableFuture.<String>completedFuture(null);
+            }
+            return stage(task, "render", traceId, () -> {
+                HtmlRenderer.Rendering rendering = HtmlRenderer.getInstance().render(apiResponse, progress);
+                // the page is as fresh as the older of the response and the template
+                long expires = apiResponse.tryGetLong("expires", 0L);
+                long revalidate = apiResponse.tryGetLong("revalidate", expires);
+                CompiledTemplate template = rendering.getTemplate();
+                revalidate = Math.min(revalidate, template.getRevalidate());
+                expires = Math.min(expires, template.getExpires());
+                task.revalidate = revalidate;
+                task.expires = expires;
+                task.rendering = rendering;
+                return rendering.toHtml();
+            }, renderTimeoutSeconds);
+        }).whenComplete((html, throwable) -> {
+            String result;
+            if (task.isCancelled() || throwable instanceof CancellationException || (throwable != null && throwable.getCause() instanceof CancellationException)) {
+                result = "cancelled";
+            } else if (isOverloaded(throwable)) {
+                result = "overloaded";
+            } else if (throwable != null) {
+                result = "error";
+            } else if (html == null) {
+                result = "unresolved";
+            } else {
+                result = "ok";
+            }
+            long millis = System.currentTimeMillis() - start;
+            int usedTokens = progress.getUsedTokens().get();
+            Metrics metrics = Metrics.getInstance();
+            metrics.observeMillis(Metrics.SEARCH_DURATION, millis, "result", result);
+            metrics.observe(Metrics.SEARCH_TOKENS, usedTokens);
+            LOGGER.info("search finished trace=" + traceId + " result=" + result + " millis=" + millis + " query=\"" + query + "\" usedTokens=" + usedTokens);
+            if (throwable != null) {
+                task.result.completeExceptionally(throwable);
+            } else {
+                task.result.complete(html);
+            }
+        });
+
+        return task;
+    }
+
+    /**
+     * Route and fetch the query in the background, e.g. to refresh its cached response. Like a search it joins a running search for the same
+     * query and goes through the admission control.
+     *
+     * @param fetchAllowed Decides after routing whether the API may be called. Searches that joined in the meantime get the API called anyway.
+     * @return The API response or null if the query could not be resolved or the API was not called.
+     */
+    public CompletableFuture<JsonObject> refresh(String query, Predicate<Searcher.Route> fetchAllowed) {
+        Progress progress = new Progress();
+        return resolve(query, progress, progress.getTraceId(), fetchAllowed);
+    }
+
+    /**
+     * Route and fetch the query on the cold path. If the same query is already being resolved we wait for that one. The flight is not bound
+     * to the caller, it is only cancelled once every caller that waits for it was cancelled.
+     */
+    private CompletableFuture<JsonObject> resolve(String query, Progress progress, String traceId, Predicate<Searcher.Route> fetchAllowed) {
+        Searcher searcher = Searcher.getInstance();
+        String key = QueryNormalizer.canonicalKey(query);
+        SearchTask flightTask = new SearchTask(traceId);
+        return queryFlights.execute(key, progress, flightProgress -> {
+            // only the first search for a query takes the cold path, the others wait for it
+            AdmissionControl admissionControl = AdmissionControl.getInstance();
+            try {
+                admissionControl.enterColdPath();
+            } catch (AdmissionControl.OverloadedException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<JsonObject> flight = stage(flightTask, "route", traceId, () -> searcher.route(query, flightProgress), routeTimeoutSeconds).thenCompose(route -> {
+                if (route == null || !fetchAllowed.test(route) && queryFlights.getCallers(key) <= 1) {
+                    return CompletableFuture.<JsonObject>completedFuture(null);
+                }
+                if (route.getUrls().size() == 1) {
+                    // we know where the response will come from, get the template ready while we wait for the API
+                    prepareTemplate(Searcher.toSource(route.getUrl()));
+                }
+                return stage(flightTask, "fetch", traceId, () -> searcher.fetch(query, route, flightProgress), fetchTimeoutSeconds);
+            });
+            flight.whenComplete((apiResponse, throwable) -> {
+                admissionControl.exitColdPath();
+                if (flight.isCancelled()) {
+                    flightTask.cancel();
+                }
+            });
+            return flight;
+        });
+    }
+
+    /**
+     * @return True if the search failed because there was no capacity on the cold path.
+     */
+    public static boolean isOverloaded(Throwable throwable) {
+        while (throwable != null) {
+            if (throwable instanceof AdmissionControl.OverloadedException) {
+                return true;
+            }
+            throwable = throwable.getCause();
+        }
+        return false;
+    }
+
+    private void prepareTemplate(String source) {
+        executor.execute(() -> {
+            try {
+                HtmlRenderer.getInstance().prepareTemplate(source);
+            } catch (Exception e) {
+                LOGGER.error("could not prepare template for " + source, e);
+            }
+        });
+    }
+
+    /**
+     * Run one stage on the executor and record how long it took. On timeout or cancellation the thread running the stage is interrupted.
+     */
+    private <T> CompletableFuture<T> stage(SearchTask task, String name, String traceId, Callable<T> callable, long timeoutSeconds) {
+        CompletableFuture<T> stage = new CompletableFuture<>();
+        if (task.isCancelled()) {
+            stage.completeExceptionally(new CancellationException("search was cancelled"));
+            return stage;
+        }
+        Future<?> running = executor.submit(() -> {
+            // the log lines of the stage can be told apart from those of other searches
+            MDC.put("traceId", traceId);
+            long start = System.currentTimeMillis();
+            try {
+                stage.complete(callable.call());
+            } catch (Throwable e) {
+                stage.completeExceptionally(e);
+            } finally {
+                Metrics.getInstance().observeMillis(Metrics.STAGE_DURATION, System.currentTimeMillis() - start, "stage", name);
+                MDC.remove("traceId");
+            }
+        });
+        stage.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                running.cancel(true);
+            }
+        });
+        task.currentStage = stage;
+        // the search might have been cancelled while we submitted the stage
+        if (task.isCancelled()) {
+            stage.cancel(true);
+        }
+        return stage.orTimeout(timeoutSeconds, TimeUnit.SECONDS);
+    }
+}
@@ -6,18 +6,22 @@ import org.apache.log4j.Logger;
 import org.eclipse.jetty.websocket.api.Session;
 import ws.palladian.helper.ConfigHolder;
 import ws.palladian.helper.UrlHelper;
-import ws.palladian.helper.collection.MapBuilder;
 import ws.palladian.helper.io.FileHelper;
 import ws.palladian.helper.nlp.StringHelper;
 import ws.palladian.persistence.json.JsonArray;
-import ws.palladian.persistence.json.JsonDatabase;
 import ws.palladian.persistence.json.JsonObject;
-import ws.palladian.retrieval.DocumentRetriever;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -29,15 +33,85 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class Searcher {
     private static final Logger LOGGER = Logger.getLogger(Searcher.class);
     private final boolean caching;
-    private final JsonDatabase jsonDatabase;
-    private static final String RESPONSES_COLLECTION = "api-responses";
+    private final QueryCache queryCache;
 
-    private final String apiDescriptions;
+    /** how long a response is still served while it is refreshed in the background after it should have been revalidated */
+    private final long staleMillis;
+    static final String RESPONSES_COLLECTION = "api-responses";
+
+    /** the instructions for the routing LLM call, they come first so the prompt prefix is the same for all queries */
+    private final String apiAvailabilityPrompt;
+
+    /** the description and URL template of every available API, in the order of apis.json */
+    private final List<String> apiCatalog;
+
+    /** the estimated tokens of every entry of the API catalog */
+    private final int[] apiCatalogTokens;
+
+    /** the routing prompt with the whole catalog if it fits the token budget, it is the same for every query then */
+    private final String fullApiDescriptions;
+
+    /** maximum size of the API catalog that we send to the LLM */
+    private final int routingMaxTokens;
+
+    /** maximum number of APIs in the catalog if the whole catalog is too large */
+    private final int routingMaxCandidates;
+
+    /** whether queries are routed without the LLM if the router is confident */
+    private final boolean localRouting;
 
     private final String apiUsagePrompt;
 
-    /** some APIs need authentication, keep a map of domain => pair of parameter + key in here */
-    private final Map<String, Pair<String, String>> apiAuthentication = new HashMap<>();
+    /** asks the LLM for several API URLs if fan-out is enabled */
+    private final String apiFanOutPrompt;
+
+    /** maximum number of APIs that are called for one query */
+    private final int fanOutMaxEndpoints;
+
+    /** how long we wait for a single API when several are called */
+    private final long fanOutEndpointTimeoutMillis;
+
+    /** how long we wait for all APIs together */
+    private final long fanOutBudgetMillis;
+
+    /** calls the APIs in parallel when a query is fanned out */
+    private final ExecutorService fanOutExecutor;
+
+    /** reads API responses and cuts them down to what we need */
+    private final JsonProjector jsonProjector;
+
+    /** routes queries locally if it is confident and picks the APIs that the LLM gets to see */
+    private final ApiRouter apiRouter;
+
+
+    /**
+     * The result of the routing stage: the API URLs to call, the best one first, and whether the LLM picked them.
+     */
+    public static class Route {
+        private final List<String> urls;
+        private final boolean routedByLlm;
+
+        public Route(String url, boolean routedByLlm) {
+            this(List.of(url), routedByLlm);
+        }
+
+        public Route(List<String> urls, boolean routedByLlm) {
+            this.urls = Collections.unmodifiableList(urls);
+            this.routedByLlm = routedByLlm;
+        }
+
+        public String getUrl() {
+            return urls.get(0);
+        }
+
+        public List<String> getUrls() {
+            return urls;
+        }
+
+        public boolean isRoutedByLlm() {
+            return routedByLlm;
+        }
+    }
 
     static class SingletonHolder {
         static Searcher instance = new Searcher();
@@ -48,32 +122,103 @@ public class Searcher {
     }
 
     private Searcher() {
-        caching = ConfigHolder.getInstance().getConfig().getBoolean("caching.json", false);
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        caching = config.getBoolean("caching.json", false);
+        staleMillis = TimeUnit.HOURS.toMillis(config.getLong("caching.stale_hours", 24));
 
         if (caching) {
-            jsonDatabase = new JsonDatabase("data", 1000);
-            jsonDatabase.createIndex(RESPONSES_COLLECTION, "_id");
+            queryCache = new QueryCache(CacheStore.getInstance(), RESPONSES_COLLECTION, config.getInt("caching.memory.size", 1000),
+                    config.getDouble("caching.similarity_threshold", 0.85));
         } else {
-            jsonDatabase = null;
+            queryCache = null;
         }
 
+        jsonProjector = new JsonProjector(config.getLong("ingest.max_bytes", 5 * 1024 * 1024), config.getInt("ingest.max_array_length", 50),
+                config.getInt("ingest.max_string_length", 5000), config.getInt("ingest.max_depth", 64));
+
         ClassLoader classLoader = getClass().getClassLoader();
-        JsonArray availableApis = JsonArray.tryParse(FileHelper.readFileToString(classLoader.getResourceAsStream("apis.json")));
+        // operators can use their own catalog instead of the bundled one
+        String apisPath = config.getString("apis.path", null);
+        JsonArray availableApis = JsonArray.tryParse(apisPath == null ? FileHelper.readFileToString(classLoader.getResourceAsStream("apis.json"))
+                : FileHelper.tryReadFileToString(apisPath));
         availableApis = filterApisIfNoAuthenticationAvailable(availableApis);
-        apiDescriptions = createApiDescriptions(availableApis, FileHelper.readFileToString(classLoader.getResourceAsStream("api-availability-prompt.txt")));
+        availableApis = filterUnhealthyApis(availableApis);
+        apiAvailabilityPrompt = FileHelper.readFileToString(classLoader.getResourceAsStream("api-availability-prompt.txt"));
+        apiCatalog = createApiCatalog(availableApis);
+        routingMaxTokens = config.getInt("prompt.routing.max_tokens", 3000);
+        routingMaxCandidates = config.getInt("prompt.routing.max_candidates", 10);
+        apiCatalogTokens = new int[apiCatalog.size()];
+        int catalogTokens = 0;
+        for (int i = 0; i < apiCatalog.size(); i++) {
+            apiCatalogTokens[i] = PromptBuilder.estimateTokens(apiCatalog.get(i));
+            catalogTokens += apiCatalogTokens[i];
+        }
+        String promptPrefix = apiAvailabilityPrompt + "\n\n";
+        if (catalogTokens <= routingMaxTokens - PromptBuilder.estimateTokens(promptPrefix)) {
+            fullApiDescriptions = promptPrefix + String.join("", apiCatalog);
+        } else {
+            fullApiDescriptions = null;
+        }
         apiUsagePrompt = FileHelper.readFileToString(classLoader.getResourceAsStream("api-usage-prompt.txt"));
-    }
+        apiFanOutPrompt = FileHelper.readFileToString(classLoader.getResourceAsStream("api-fanout-prompt.txt"));
+
+        fanOutMaxEndpoints = Math.max(1, config.getInt("fanout.max_endpoints", 1));
+        fanOutEndpointTimeoutMillis = config.getLong("fanout.endpoint_timeout_millis", 5000);
+        fanOutBudgetMillis = config.getLong("fanout.budget_millis", 8000);
+        if (fanOutMaxEndpoints > 1) {
+            fanOutExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "api-fanout");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            fanOutExecutor = null;
+        }
 
-    private String createApiDescriptions(JsonArray availableApis, String prompt) {
-        prompt += "\n\n";
+        localRouting = config.getBoolean("router.local", true);
+        apiRouter = new ApiRouter(availableApis, config.getString("router.learned_routes_path", null), config.getDouble("router.min_score", 3.),
+                config.getDouble("router.min_margin", 1.5));
+    }
 
+    private List<String> createApiCatalog(JsonArray availableApis) {
+        List<String> catalog = new ArrayList<>();
         for (int i = 0; i < availableApis.size(); i++) {
             JsonObject apiJson = availableApis.tryGetJsonObject(i);
-            prompt += apiJson.tryGetString("description") + "\n";
-            prompt += apiJson.tryGetString("url") + "\n\n";
+            catalog.add(apiJson.tryGetString("description") + "\n" + apiJson.tryGetString("url") + "\n\n");
         }
+        return catalog;
+    }
 
-        return prompt;
+    /**
+     * The APIs we tell the LLM about. If the whole catalog fits the token budget we always send all of it so the prompt prefix is the same for
+     * every query and the LLM provider can cache it. Otherwise, only the APIs that the router ranks highest for the query are sent.
+     */
+    private String createApiDescriptions(String query) {
+        if (fullApiDescriptions != null) {
+            return fullApiDescriptions;
+        }
+        StringBuilder descriptions = new StringBuilder(apiAvailabilityPrompt).append("\n\n");
+        int budget = routingMaxTokens - PromptBuilder.estimateTokens(descriptions.toString());
+
+        List<Integer> candidates = apiRouter.rank(query, routingMaxCandidates);
+        if (candidates.isEmpty()) {
+            // the router has no idea, let the LLM look at the fastest healthy APIs rather than the first ones in the file
+            candidates = apiRouter.rankByLatency();
+        }
+
+        // the best candidates that fit the budget, in the order of the catalog so that similar queries share a longer prompt prefix
+        List<Integer> apiIndices = new ArrayList<>();
+        for (int apiIndex : candidates) {
+            if (apiCatalogTokens[apiIndex] <= budget) {
+                budget -= apiCatalogTokens[apiIndex];
+                apiIndices.add(apiIndex);
+            }
+        }
+        Collections.sort(apiIndices);
+        for (int apiIndex : apiIndices) {
+            descriptions.append(apiCatalog.get(apiIndex));
+        }
+        return descriptions.toString();
     }
 
     /**
@@ -88,11 +233,8 @@ public class Searcher {
             if (authenticationConfigKey.isEmpty()) {
                 filteredApis.add(apiJson);
             } else {
-                Configuration config = ConfigHolder.getInstance().getConfig();
-                String apiKey = config.getString("api." + authenticationConfigKey + ".key");
-                if (apiKey != null && !apiKey.isEmpty()) {
-                    apiAuthentication.put(config.getString("api." + authenticationConfigKey + ".domain"),
-                            Pair.of(config.getString("api." + authenticationConfigKey + ".parameter"), apiKey));
+                // the upstream client adds the key to all calls to the domain
+                if (UpstreamClient.getInstance().addAuthentication(ConfigHolder.getInstance().getConfig(), authenticationConfigKey)) {
                     filteredApis.add(apiJson);
                 } else {
                     LOGGER.warn("no authentication information found for API: " + apiJson);
@@ -104,111 +246,295 @@ public class Searcher {
     }
 
     /**
-     * Find the API that is best suited for the query.
+     * The endpoint import marks APIs as unhealthy if most of their endpoints did not work, we don't route to those.
      */
-    private String getApiUrl(String query) throws Exception {
+    private JsonArray filterUnhealthyApis(JsonArray availableApis) {
+        JsonArray filteredApis = new JsonArray();
+        for (int i = 0; i < availableApis.size(); i++) {
+            JsonObject apiJson = availableApis.tryGetJsonObject(i);
+            if (Boolean.FALSE.equals(apiJson.tryGetBoolean("healthy"))) {
+                LOGGER.warn("API is not healthy: " + apiJson.tryGetString("url"));
+                continue;
+            }
+            filteredApis.add(apiJson);
+        }
+        return filteredApis;
+    }
+
+    /**
+     * Find the APIs that are best suited for the query, the best one first.
+     */
+    private List<String> getApiUrls(String query, AtomicInteger usedTokens) throws Exception {
         JsonArray messages = new JsonArray();
 
         JsonObject systemMessage = new JsonObject();
         systemMessage.put("role", "system");
-        systemMessage.put("content", apiDescriptions);
+        systemMessage.put("content", createApiDescriptions(query));
         messages.add(systemMessage);
 
         JsonObject userMessage = new JsonObject();
         userMessage.put("role", "user");
-        userMessage.put("content", apiUsagePrompt.replace("#QUERY#", query));
+        if (fanOutMaxEndpoints > 1) {
+            userMessage.put("content", apiFanOutPrompt.replace("#QUERY#", query).replace("#MAX#", String.valueOf(fanOutMaxEndpoints)));
+        } else {
+            userMessage.put("content", apiUsagePrompt.replace("#QUERY#", query));
+        }
         messages.add(userMessage);
 
-        String apiUrl = LargeLanguageModelApi.getInstance().chat(messages, 0., new AtomicInteger(), 4095);
+        int tokensBefore = usedTokens.get();
+        String apiUrl = LargeLanguageModelApi.getInstance().chat(LargeLanguageModelApi.ROUTING, messages, 0., usedTokens, 4095);
+        LOGGER.info("routing used " + (usedTokens.get() - tokensBefore) + " tokens for query \"" + query + "\"");
 
-        // make sure we only use the URL, not any explanation text
-        Optional<String> firstUrl = UrlHelper.extractUrls(apiUrl).stream().findFirst();
-        return firstUrl.orElse(null);
+        // make sure we only use the URLs, not any explanation text
+        List<String> apiUrls = new ArrayList<>();
+        for (String url : new LinkedHashSet<>(UrlHelper.extractUrls(apiUrl))) {
+            if (url.startsWith("http") && apiUrls.size() < fanOutMaxEndpoints) {
+                apiUrls.add(url);
+            }
+        }
+        return apiUrls;
     }
 
     public JsonObject search(String query) throws Exception {
         return search(query, null);
     }
 
+    /**
+     * Run all stages of the search on the calling thread: cache lookup, routing and fetching.
+     */
     public JsonObject search(String query, Session session) throws Exception {
-        String jsKey = StringHelper.makeSafeName(query);
-
-        // see whether we have a response for the query already
-        JsonObject apiResponse = null;
+        Progress progress = new Progress(session);
+        JsonObject apiResponse = getCachedResponse(query, progress);
+        if (apiResponse != null) {
+            return apiResponse;
+        }
+        Route route = route(query, progress);
+        if (route == null) {
+            return null;
+        }
+        return fetch(query, route, progress);
+    }
 
-        if (caching) {
-            apiResponse = jsonDatabase.getOne(RESPONSES_COLLECTION, "_id", jsKey);
+    /**
+     * See whether we have a response for the query (or a paraphrase of it) already.
+     *
+     * @return The cached response or null if there is none.
+     */
+    public JsonObject getCachedResponse(String query, Progress progress) throws Exception {
+        if (!caching) {
+            return null;
+        }
+        JsonObject apiResponse = queryCache.get(query);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("query cache statistics: " + queryCache.getStatistics());
         }
-        if (apiResponse != null && apiResponse.tryGetLong("expires", 0L) > System.currentTimeMillis()) {
-            if (session != null) {
-                session.getRemote().sendString("Found a cached response");
+        if (apiResponse != null) {
+            progress.send("Found a cached response");
+            LOGGER.info("found response in cache");
+            if (isStale(apiResponse, System.currentTimeMillis())) {
+                // serve the stale response right away and refresh it for the next users
+                CacheWarmer.getInstance().refresh(query);
             }
-            LOGGER.info("found response in database");
-            return apiResponse;
         }
-        apiResponse = new JsonObject();
+        return apiResponse;
+    }
 
-        String apiUrl = getApiUrl(query);
-        if (apiUrl == null || !apiUrl.startsWith("http")) {
-            LOGGER.error("AI response not a URL: " + apiUrl);
-            if (session != null) {
-                session.getRemote().sendString("Could not find API to resolve query");
-            }
-            return null;
+    /**
+     * @return The hits and misses of the query cache, empty if responses are not cached.
+     */
+    public JsonObject getStatistics() {
+        if (!caching) {
+            return new JsonObject();
         }
-        if (session != null) {
-            session.getRemote().sendString("Using API: " + apiUrl);
+        return queryCache.getStatistics();
+    }
+
+    /**
+     * @return The cached response for exactly this query or null, without counting it as a cache hit.
+     */
+    public JsonObject peekCachedResponse(String query) {
+        if (!caching) {
+            return null;
         }
+        return queryCache.peek(query);
+    }
 
-        // see whether we have authentication information for this domain
-        String domain = UrlHelper.getDomain(apiUrl, false, false);
-        if (apiAuthentication.containsKey(domain)) {
-            Pair<String, String> authentication = apiAuthentication.get(domain);
-            if (apiUrl.contains("?")) {
-                apiUrl += "&";
-            } else {
-                apiUrl += "?";
+    /**
+     * @return True if the response can still be served but should be refreshed.
+     */
+    static boolean isStale(JsonObject apiResponse, long time) {
+        long expires = apiResponse.tryGetLong("expires", 0L);
+        return apiResponse.tryGetLong("revalidate", expires) <= time;
+    }
+
+    /**
+     * The routing stage: pick the API URLs for the query, locally if possible, otherwise with the LLM.
+     *
+     * @return The route or null if no API could be found.
+     */
+    public Route route(String query, Progress progress) throws Exception {
+        if (localRouting) {
+            String apiUrl = apiRouter.route(query);
+            if (apiUrl != null) {
+                progress.send("Using API: " + apiUrl);
+                return new Route(apiUrl, false);
             }
-            apiUrl += authentication.getLeft() + "=" + UrlHelper.encodeParameter(authentication.getRight());
         }
-
-        DocumentRetriever documentRetriever = new DocumentRetriever();
-        documentRetriever.setGlobalHeaders(MapBuilder.createPut("Accept", "application/json").create());
-        LOGGER.info("making API call: " + apiUrl);
-        String textResponse = documentRetriever.getText(apiUrl);
-        if (textResponse == null) {
-            LOGGER.error("API response not valid: " + textResponse);
+        List<String> apiUrls = getApiUrls(query, progress.getUsedTokens());
+        LOGGER.info("routing source=llm query=\"" + query + "\" urls=" + apiUrls);
+        if (apiUrls.isEmpty()) {
+            LOGGER.error("AI response not a URL");
+            progress.send("Could not find API to resolve query");
             return null;
+        }
+        progress.send("Using API: " + String.join(", ", apiUrls));
+        return new Route(apiUrls, true);
+    }
+
+    /**
+     * The fetching stage: call the APIs the query was routed to and cache the response. If there are several APIs, they are called in parallel
+     * and the responses that arrive within the time budget are merged.
+     *
+     * @return The API response or null if no API returned valid JSON.
+     */
+    public JsonObject fetch(String query, Route route, Progress progress) throws Exception {
+        String apiUrl;
+        JsonObject apiResponse;
+        boolean merged = false;
+        if (route.getUrls().size() == 1) {
+            apiUrl = route.getUrl();
+            apiResponse = fetchApiResponse(apiUrl);
         } else {
-            if (textResponse.startsWith("[")) {
-                JsonArray array = JsonArray.tryParse(textResponse);
-                apiResponse.put("response", array);
+            List<Pair<String, JsonObject>> apiResponses = fanOut(route.getUrls());
+            if (apiResponses.isEmpty()) {
+                apiUrl = null;
+                apiResponse = null;
+            } else if (apiResponses.size() == 1) {
+                apiUrl = apiResponses.get(0).getLeft();
+                apiResponse = apiResponses.get(0).getRight();
             } else {
-                apiResponse = JsonObject.tryParse(textResponse);
+                apiUrl = apiResponses.get(0).getLeft();
+                apiResponse = merge(apiResponses);
+                merged = true;
             }
         }
         if (apiResponse == null) {
-            LOGGER.error("API response not valid: " + textResponse);
             return null;
         }
 
+        // the LLM found a working endpoint, remember it so the next similar query can be routed locally
+        if (route.isRoutedByLlm() && localRouting) {
+            apiRouter.learn(query, apiUrl);
+        }
+
         if (caching) {
-            apiResponse.put("_id", jsKey);
-            apiResponse.put("expires", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(ConfigHolder.getInstance().getConfig().getInt("caching.duration_hours")));
-            apiResponse.put("source", apiUrl.replaceAll("\\?.*", ""));
-            jsonDatabase.add(RESPONSES_COLLECTION, apiResponse);
+            long revalidate = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(ConfigHolder.getInstance().getConfig().getInt("caching.duration_hours"));
+            apiResponse.put("revalidate", revalidate);
+            apiResponse.put("expires", revalidate + staleMillis);
+            // the source picks the template, a "source" field of the API payload must not; merge() sets the combined source
+            if (!merged) {
+                apiResponse.put("source", toSource(apiUrl));
+            }
+            queryCache.put(query, apiResponse);
         }
 
-        if (session != null) {
-            session.getRemote().sendString("✔");
+        progress.send("✔");
+
+        // don't serialize the whole response just to throw the log line away
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("API returned: " + apiResponse);
+        } else if (LOGGER.isInfoEnabled()) {
+            LOGGER.info("API returned: " + StringHelper.shortenEllipsis(apiResponse.toString(), 100));
         }
 
-        LOGGER.info("LLM returned: " + StringHelper.shortenEllipsis(apiResponse.toString(), 100));
-        LOGGER.debug("LLM returned: " + apiResponse);
+        return apiResponse;
+    }
 
+    /**
+     * Call a single API.
+     *
+     * @return The API response or null if the API did not return valid JSON.
+     */
+    private JsonObject fetchApiResponse(String apiUrl) {
+        LOGGER.info("making API call: " + apiUrl);
+        // the response is projected while it comes in so we never hold the complete response in memory
+        JsonObject apiResponse = UpstreamClient.getInstance().get(apiUrl, jsonProjector::project);
+        if (apiResponse == null) {
+            LOGGER.error("API response not valid: " + apiUrl);
+        }
         return apiResponse;
     }
 
+    /**
+     * Call all APIs in parallel. Every API has its own deadline and we don't wait longer than the budget for all of them together.
+     *
+     * @return Pairs of URL and response of the APIs that answered in time, in the order of the URLs.
+     */
+    private List<Pair<String, JsonObject>> fanOut(List<String> apiUrls) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long budgetDeadline = start + fanOutBudgetMillis;
+        long endpointDeadline = Math.min(budgetDeadline, start + fanOutEndpointTimeoutMillis);
+
+        List<Future<JsonObject>> futures = new ArrayList<>();
+        for (String apiUrl : apiUrls) {
+            futures.add(fanOutExecutor.submit(() -> fetchApiResponse(apiUrl)));
+        }
+
+        // all calls started at the same time so waiting for them one after another does not add up the deadlines
+        List<Pair<String, JsonObject>> apiResponses = new ArrayList<>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<JsonObject> future = futures.get(i);
+                try {
+                    JsonObject apiResponse = future.get(Math.max(0, endpointDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    if (apiResponse != null) {
+                        apiResponses.add(Pair.of(apiUrls.get(i), apiResponse));
+                    }
+                } catch (TimeoutException e) {
+                    LOGGER.warn("API did not answer in time: " + apiUrls.get(i));
+                } catch (ExecutionException e) {
+                    LOGGER.error("API call failed: " + apiUrls.get(i), e.getCause());
+                }
+            }
+        } finally {
+            for (Future<JsonObject> future : futures) {
+                future.cancel(true);
+            }
+        }
+        LOGGER.info("fan-out: " + apiResponses.size() + " of " + apiUrls.size() + " APIs answered in " + (System.currentTimeMillis() - start) + "ms");
+        return apiResponses;
+    }
+
+    /**
+     * Merge the responses of several APIs into one response with a section per API.
+     */
+    private JsonObject merge(List<Pair<String, JsonObject>> apiResponses) {
+        JsonArray sections = new JsonArray();
+        List<String> sources = new ArrayList<>();
+        for (Pair<String, JsonObject> apiResponse : apiResponses) {
+            String source = toSource(apiResponse.getLeft());
+            JsonObject section = new JsonObject();
+            section.put("source", source);
+            section.put("response", apiResponse.getRight());
+            sections.add(section);
+            sources.add(source);
+        }
+        JsonObject mergedResponse = new JsonObject();
+        mergedResponse.put("sections", sections);
+        if (caching) {
+            // the combination of APIs gets its own template
+            mergedResponse.put("source", String.join("+", sources));
+        }
+        return mergedResponse;
+    }
+
+    /**
+     * The source of a response is the API URL without the parameters.
+     */
+    static String toSource(String apiUrl) {
+        return apiUrl.replaceAll("\\?.*", "");
+    }
+
     public static void main(String[] args) throws Exception {
         Searcher searcher = new Searcher();
         JsonObject searchResponse = searcher.search("what cocktails can I make with rum?");
@@ -0,0 +1,110 @@
+package cc.opensearch;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Makes sure that only one computation per key is running at a time. Callers that come in while a computation for their key is in flight
+ * attach to it instead of starting their own, and their sessions receive the progress messages of the running computation.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class SingleFlight<K, V> {
+    private final Map<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    private static class Flight<V> {
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private final Progress progress = new Progress();
+        /** the callers that wait for the result, changed only while the map entry is locked */
+        private int callers;
+        private volatile CompletableFuture<V> computation;
+    }
+
+    /**
+     * Run the computation for the key unless it is already running.
+     *
+     * @param key The key, equal keys share one computation.
+     * @param progress The progress of the caller, its sessions receive the progress messages of the computation.
+     * @param computation The computation, gets the progress that all attached sessions follow.
+     * @return The result of the computation. Cancelling it detaches the caller, the computation is only cancelled once all callers cancelled.
+     */
+    public CompletableFuture<V> execute(K key, Progress progress, Function<Progress, CompletableFuture<V>> computation) {
+        Flight<V> newFlight = new Flight<>();
+        Flight<V> flight = flights.compute(key, (k, running) -> {
+            Flight<V> joined = running != null ? running : newFlight;
+            joined.callers++;
+            return joined;
+        });
+        boolean leader = flight == newFlight;
+        flight.progress.attach(progress);
+
+        if (leader) {
+            Flight<V> leaderFlight = flight;
+            CompletableFuture<V> computationResult;
+            try {
+                computationResult = computation.apply(leaderFlight.progress);
+            } catch (RuntimeException e) {
+                computationResult = CompletableFuture.failedFuture(e);
+            }
+            leaderFlight.computation = computationResult;
+            computationResult.whenComplete((result, throwable) -> {
+                flights.remove(key, leaderFlight);
+                // the tokens are on the caller that started the computation, the others got the result for free
+                progress.getUsedTokens().addAndGet(leaderFlight.progress.getUsedTokens().get());
+                if (throwable != null) {
+                    leaderFlight.result.completeExceptionally(throwable);
+                } else {
+                    leaderFlight.result.complete(result);
+                }
+            });
+        }
+
+        CompletableFuture<V> callerResult = flight.result.thenApply(Function.identity());
+        Flight<V> joinedFlight = flight;
+        callerResult.whenComplete((result, throwable) -> {
+            if (callerResult.isCancelled()) {
+                leave(key, joinedFlight, progress);
+            }
+        });
+        return callerResult;
+    }
+
+    private void leave(K key, Flight<V> flight, Progress progress) {
+        flight.progress.detach(progress);
+        boolean[] lastCaller = new boolean[1];
+        flights.computeIfPresent(key, (k, running) -> {
+            if (running != flight || --flight.callers > 0) {
+                return running;
+            }
+            // nobody waits anymore, a new caller for the key starts a new computation
+            lastCaller[0] = true;
+            return null;
+        });
+        CompletableFuture<V> computation = flight.computation;
+        if (lastCaller[0] && computation != null) {
+            computation.cancel(true);
+        }
+    }
+
+    /**
+     * @return The number of callers that wait for the running computation for the key, 0 if there is none.
+     */
+    public int getCallers(K key) {
+        int[] callers = new int[1];
+        flights.computeIfPresent(key, (k, running) -> {
+            callers[0] = running.callers;
+            return running;
+        });
+        return callers[0];
+    }
+
+    /**
+     * @return The number of computations that are currently running.
+     */
+    public int getInFlight() {
+        return flights.size();
+    }
+}
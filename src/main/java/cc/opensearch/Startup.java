@@ -0,0 +1,183 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Gets the search ready before the first user comes. The components are initialized in parallel instead of by the first requests, and
+ * cached queries can be replayed so the caches, the templates and the JIT are warm. /health/ready only reports ready afterwards, so during a
+ * rolling deploy the load balancer keeps sending traffic to the old nodes until the new ones are warm.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class Startup {
+    private static final Logger LOGGER = Logger.getLogger(Startup.class);
+
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+
+    private boolean started;
+
+    static class SingletonHolder {
+        static Startup instance = new Startup();
+    }
+
+    public static Startup getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    private Startup() {
+    }
+
+    /**
+     * Start initializing in the background.
+     *
+     * @return Completes once the search is ready.
+     */
+    public synchronized CompletableFuture<Void> start() {
+        if (started) {
+            return ready;
+        }
+        started = true;
+        Thread thread = new Thread(this::run, "startup");
+        thread.setDaemon(true);
+        thread.start();
+        return ready;
+    }
+
+    /**
+     * @return True once all components are initialized and warmed up.
+     */
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    private void run() {
+        long start = System.currentTimeMillis();
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "startup-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // the phases depend on each other, within a phase the components don't need each other
+            Map<String, Callable<?>> storesAndClients = new LinkedHashMap<>();
+            if (config.getBoolean("caching.json", false) || config.getBoolean("caching.html", false)) {
+                storesAndClients.put("cache store", CacheStore::getInstance);
+            }
+            storesAndClients.put("upstream client", UpstreamClient::getInstance);
+            storesAndClients.put("llm", LargeLanguageModelApi::getInstance);
+            storesAndClients.put("metrics", Metrics::getInstance);
+            initialize(executor, storesAndClients);
+
+            // the catalog, routing prompt and router index, the templates
+            Map<String, Callable<?>> searchComponents = new LinkedHashMap<>();
+            searchComponents.put("searcher", Searcher::getInstance);
+            searchComponents.put("html renderer", HtmlRenderer::getInstance);
+            initialize(executor, searchComponents);
+
+            Map<String, Callable<?>> pipeline = new LinkedHashMap<>();
+            pipeline.put("search pipeline", SearchPipeline::getInstance);
+            pipeline.put("cache warmer", CacheWarmer::getInstance);
+            pipeline.put("admission control", AdmissionControl::getInstance);
+            initialize(executor, pipeline);
+
+            warmUp(config);
+            ready.complete(null);
+            LOGGER.info("ready after " + (System.currentTimeMillis() - start) + "ms");
+        } catch (Exception e) {
+            LOGGER.error("startup failed", e);
+            ready.completeExceptionally(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void initialize(ExecutorService executor, Map<String, Callable<?>> components) throws Exception {
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        for (Map.Entry<String, Callable<?>> component : components.entrySet()) {
+            futures.put(component.getKey(), executor.submit(() -> {
+                long start = System.currentTimeMillis();
+                component.getValue().call();
+                LOGGER.info("initialized " + component.getKey() + " in " + (System.currentTimeMillis() - start) + "ms");
+                return null;
+            }));
+        }
+        for (Future<?> future : futures.values()) {
+            future.get();
+        }
+    }
+
+    /**
+     * Replay the queries from startup.warmup_queries_path, one per line. By default only the ones with a fresh cached response and a fresh
+     * template are replayed, the others would call the LLM or the APIs. Replays don't count for the popularity of the queries.
+     */
+    private static void warmUp(Configuration config) {
+        String warmupQueriesPath = config.getString("startup.warmup_queries_path", null);
+        if (warmupQueriesPath == null || warmupQueriesPath.isEmpty()) {
+            return;
+        }
+        List<String> queries = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(warmupQueriesPath))) {
+                if (!line.isBlank()) {
+                    queries.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("could not read warm-up queries from " + warmupQueriesPath, e);
+            return;
+        }
+        boolean cachedOnly = config.getBoolean("startup.warmup_cached_only", true);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getLong("startup.warmup_max_seconds", 60));
+        int replayed = 0;
+        for (String query : queries) {
+            long remainingMillis = deadline - System.currentTimeMillis();
+            if (remainingMillis <= 0) {
+                LOGGER.warn("warm-up took too long, replayed " + replayed + " of " + queries.size() + " queries");
+                break;
+            }
+            if (cachedOnly && !isCachedAndFresh(query)) {
+                continue;
+            }
+            SearchPipeline.SearchTask task = SearchPipeline.getInstance().search(query, null, false);
+            try {
+                task.getResult().get(remainingMillis, TimeUnit.MILLISECONDS);
+                replayed++;
+            } catch (TimeoutException e) {
+                task.cancel();
+            } catch (Exception e) {
+                // a failing query must not keep the node from becoming ready
+                LOGGER.warn("warm-up query failed: " + query, e);
+            }
+        }
+        LOGGER.info("warmed up with " + replayed + " queries");
+    }
+
+    /**
+     * A stale response would be refreshed and a missing or stale template generated, both call the LLM.
+     */
+    private static boolean isCachedAndFresh(String query) {
+        JsonObject apiResponse = Searcher.getInstance().peekCachedResponse(query);
+        return apiResponse != null && !Searcher.isStale(apiResponse, System.currentTimeMillis())
+                && HtmlRenderer.getInstance().hasFreshTemplate(apiResponse);
+    }
+}
@@ -0,0 +1,184 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * All hand-crafted templates, loaded and compiled once at startup. Templates come from html-templates/ on the classpath and from the template
+ * directory where operators can add templates and where LLM templates are stored once they are permanent. The directory can be watched so new
+ * templates are picked up without a restart.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class TemplateRegistry {
+    private static final Logger LOGGER = Logger.getLogger(TemplateRegistry.class);
+
+    private static final String CLASSPATH_DIRECTORY = "html-templates";
+
+    private final Path templateDirectory;
+
+    /** the templates, replaced as a whole on reload */
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Snapshot {
+        /** template name => template */
+        private final Map<String, CompiledTemplate> templates;
+
+        private Snapshot(Map<String, CompiledTemplate> templates) {
+            this.templates = Collections.unmodifiableMap(templates);
+        }
+    }
+
+    public TemplateRegistry(String templateDirectory, boolean watch) {
+        this.templateDirectory = Paths.get(templateDirectory);
+        reload();
+        if (watch) {
+            watch();
+        }
+    }
+
+    /**
+     * @return The template for the source URL or null if there is none.
+     */
+    public CompiledTemplate get(String source) {
+        if (source == null) {
+            return null;
+        }
+        // looked up by the template name, not memoized per source: sources with path parameters are endless and the name is cheap to derive
+        CompiledTemplate template = snapshot.templates.get(HtmlRenderer.toTemplateName(source));
+        if (template != null) {
+            hits.incrementAndGet();
+            return template;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Add a template to the directory, e.g. a promoted LLM template.
+     */
+    public synchronized boolean add(String source, CompiledTemplate template) {
+        String templateName = HtmlRenderer.toTemplateName(source);
+        try {
+            Files.createDirectories(templateDirectory);
+            Files.writeString(templateDirectory.resolve(templateName + ".html"), template.getHtml(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.error("could not store template " + templateName, e);
+            return false;
+        }
+        Map<String, CompiledTemplate> newTemplates = new HashMap<>(snapshot.templates);
+        newTemplates.put(templateName, template.toPermanent());
+        snapshot = new Snapshot(newTemplates);
+        return true;
+    }
+
+    /**
+     * Load all templates from the classpath and the template directory.
+     */
+    public synchronized void reload() {
+        Map<String, CompiledTemplate> newTemplates = new HashMap<>();
+        // the directory first so the hand-crafted templates from the classpath win
+        loadTemplates(templateDirectory, newTemplates);
+        try {
+            URL url = getClass().getClassLoader().getResource(CLASSPATH_DIRECTORY);
+            if (url != null) {
+                URI uri = url.toURI();
+                if ("jar".equals(uri.getScheme())) {
+                    try (FileSystem fileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap())) {
+                        loadTemplates(fileSystem.getPath(CLASSPATH_DIRECTORY), newTemplates);
+                    }
+                } else {
+                    loadTemplates(Paths.get(uri), newTemplates);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.error("could not load templates from the classpath", e);
+        }
+        snapshot = new Snapshot(newTemplates);
+        LOGGER.info("loaded " + newTemplates.size() + " HTML templates");
+    }
+
+    private void loadTemplates(Path directory, Map<String, CompiledTemplate> templates) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(".html")).forEach(file -> {
+                String fileName = file.getFileName().toString();
+                try {
+                    String html = Files.readString(file, StandardCharsets.UTF_8);
+                    templates.put(fileName.substring(0, fileName.length() - 5), CompiledTemplate.compile(html, Long.MAX_VALUE));
+                } catch (IOException e) {
+                    LOGGER.error("could not read template " + file, e);
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.error("could not list templates in " + directory, e);
+        }
+    }
+
+    /**
+     * Reload the templates whenever something changes in the template directory.
+     */
+    private void watch() {
+        WatchService watchService;
+        try {
+            Files.createDirectories(templateDirectory);
+            watchService = templateDirectory.getFileSystem().newWatchService();
+            templateDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            LOGGER.error("could not watch template directory " + templateDirectory, e);
+            return;
+        }
+        Thread watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    key.pollEvents();
+                    reload();
+                    if (!key.reset()) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // we are shutting down
+            }
+        }, "template-registry-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return snapshot.templates.size();
+    }
+}
@@ -0,0 +1,472 @@
+package cc.opensearch;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.log4j.Logger;
+import ws.palladian.helper.ConfigHolder;
+import ws.palladian.helper.UrlHelper;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The client for all calls to the APIs we search. Connections are kept alive and reused (HTTP/2 where the API supports it), every domain has
+ * a limit of concurrent calls and a circuit breaker so that one slow or broken API can't tie up all our threads, and failed calls are retried
+ * with a jittered backoff.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class UpstreamClient {
+    private static final Logger LOGGER = Logger.getLogger(UpstreamClient.class);
+
+    private final HttpClient httpClient;
+
+    private final Duration requestTimeout;
+
+    /** maximum number of concurrent calls per domain */
+    private final int maxConcurrentCalls;
+
+    /** how long a call waits for a free slot of its domain before it gives up */
+    private final long bulkheadWaitMillis;
+
+    /** how often a failed call is retried */
+    private final int retries;
+
+    /** the base of the exponential backoff between retries */
+    private final long retryBackoffMillis;
+
+    /** consecutive failures after which the circuit of a domain opens */
+    private final int failureThreshold;
+
+    /** how long an open circuit rejects calls before it lets a trial call through */
+    private final long openMillis;
+
+    /** domain => pair of parameter + key for APIs that need authentication */
+    private final Map<String, Pair<String, String>> authentication = new ConcurrentHashMap<>();
+
+    /** domain => concurrent calls */
+    private final Map<String, Semaphore> bulkheads = new ConcurrentHashMap<>();
+
+    /** domain => circuit breaker */
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retriedCalls = new AtomicLong();
+    private final AtomicLong rejectedCalls = new AtomicLong();
+
+    static class SingletonHolder {
+        static UpstreamClient instance = new UpstreamClient();
+    }
+
+    public static UpstreamClient getInstance() {
+        return SingletonHolder.instance;
+    }
+
+    /**
+     * Reads the body of a successful response.
+     */
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+        T read(InputStream body) throws IOException;
+    }
+
+    /**
+     * The API answered but we can't use the response, e.g. because it is too large. This says nothing about the health of the API so the call is
+     * neither retried nor counted as a failure.
+     */
+    public static class InvalidResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidResponseException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The result of probing an endpoint: its status, how long it took and how large the response was.
+     */
+    public static class Probe {
+        private final int status;
+        private final long latencyMillis;
+        private final long bytes;
+        private final String error;
+
+        private Probe(int status, long latencyMillis, long bytes, String error) {
+            this.status = status;
+            this.latencyMillis = latencyMillis;
+            this.bytes = bytes;
+            this.error = error;
+        }
+
+        /**
+         * @return The HTTP status or 0 if the endpoint could not be reached.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return Why the endpoint could not be reached or null.
+         */
+        public String getError() {
+            return error;
+        }
+
+        public boolean isHealthy() {
+            return status >= 200 && status < 300 && bytes > 0;
+        }
+    }
+
+    /**
+     * Counts the consecutive failures of a domain. Once there are too many, calls are rejected right away until the open time is over. Then a
+     * single trial call is let through which closes the circuit again if it succeeds.
+     */
+    private static class CircuitBreaker {
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile long openUntil = 0L;
+        private volatile boolean trialRunning = false;
+
+        private synchronized boolean allowCall(long now) {
+            if (openUntil == 0L) {
+                return true;
+            }
+            if (now < openUntil || trialRunning) {
+                return false;
+            }
+            // half open
+            trialRunning = true;
+            return true;
+        }
+
+        private synchronized void onSuccess() {
+            consecutiveFailures.set(0);
+            openUntil = 0L;
+            trialRunning = false;
+        }
+
+        /** the call was not made, so let the next one be the trial */
+        private synchronized void onSkipped() {
+            trialRunning = false;
+        }
+
+        private synchronized boolean onFailure(int failureThreshold, long openMillis) {
+            boolean wasClosed = openUntil == 0L;
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold || trialRunning) {
+                openUntil = System.currentTimeMillis() + openMillis;
+                trialRunning = false;
+                return wasClosed;
+            }
+            return false;
+        }
+
+        private boolean isOpen() {
+            return openUntil != 0L;
+        }
+    }
+
+    private UpstreamClient() {
+        Configuration config = ConfigHolder.getInstance().getConfig();
+        requestTimeout = Duration.ofSeconds(config.getLong("upstream.request_timeout_seconds", 10));
+        maxConcurrentCalls = config.getInt("upstream.max_concurrent_calls_per_domain", 16);
+        bulkheadWaitMillis = config.getLong("upstream.bulkhead_wait_millis", 500);
+        retries = config.getInt("upstream.retries", 2);
+        retryBackoffMillis = config.getLong("upstream.retry_backoff_millis", 200);
+        failureThreshold = config.getInt("upstream.circuit.failure_threshold", 5);
+        openMillis = TimeUnit.SECONDS.toMillis(config.getLong("upstream.circuit.open_seconds", 30));
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(config.getLong("upstream.connect_timeout_seconds", 5)))
+                .executor(Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "upstream-client-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }))
+                .build();
+    }
+
+    /**
+     * Calls to this domain get the key as the given URL parameter.
+     */
+    public void addAuthentication(String domain, String parameter, String key) {
+        authentication.put(domain, Pair.of(parameter, key));
+    }
+
+    /**
+     * Calls to the domain of an API get the key that is configured as api.[configKey].key, .domain and .parameter.
+     *
+     * @return False if there is no key for the API.
+     */
+    public boolean addAuthentication(Configuration config, String configKey) {
+        String apiKey = config.getString("api." + configKey + ".key");
+        if (apiKey == null || apiKey.isEmpty()) {
+            return false;
+        }
+        addAuthentication(config.getString("api." + configKey + ".domain"), config.getString("api." + configKey + ".parameter"), apiKey);
+        return true;
+    }
+
+    /**
+     * Make a GET request.
+     *
+     * @return The response body or null if the API could not be reached, did not answer successfully or its circuit is open.
+     */
+    public String getText(String url) {
+        return get(url, body -> new String(body.readAllBytes(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Make a GET request and let the reader consume the body while it comes in.
+     *
+     * @return What the reader made of the body or null if the API could not be reached, did not answer successfully, the reader could not use
+     * the response or the circuit is open.
+     */
+    public <T> T get(String url, ResponseReader<T> responseReader) {
+        String domain = UrlHelper.getDomain(url, false, false);
+        if (domain == null) {
+            domain = "";
+        }
+        calls.incrementAndGet();
+
+        CircuitBreaker circuitBreaker = circuitBreakers.computeIfAbsent(domain, k -> new CircuitBreaker());
+        if (!circuitBreaker.allowCall(System.currentTimeMillis())) {
+            rejectedCalls.incrementAndGet();
+            Metrics.getInstance().increment(Metrics.UPSTREAM_REQUESTS, "domain", domain, "outcome", "circuit_open");
+            LOGGER.warn("circuit open, not calling " + url);
+            return null;
+        }
+
+        Semaphore bulkhead = bulkheads.computeIfAbsent(domain, k -> new Semaphore(maxConcurrentCalls));
+        try {
+            if (!bulkhead.tryAcquire(bulkheadWaitMillis, TimeUnit.MILLISECONDS)) {
+                rejectedCalls.incrementAndGet();
+                Metrics.getInstance().increment(Metrics.UPSTREAM_REQUESTS, "domain", domain, "outcome", "bulkhead_full");
+                LOGGER.warn("too many concurrent calls to " + domain + ", not calling " + url);
+                // we did not call the API, that says nothing about its health
+                circuitBreaker.onSkipped();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            circuitBreaker.onSkipped();
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        long start = System.currentTimeMillis();
+        String outcome = "cancelled";
+        try {
+            T result = getWithRetries(authenticate(url, domain), url, responseReader);
+            // the API answered, even if it did not like the request
+            circuitBreaker.onSuccess();
+            outcome = result == null ? "rejected_by_api" : "ok";
+            return result;
+        } catch (InvalidResponseException e) {
+            circuitBreaker.onSuccess();
+            outcome = "invalid_response";
+            LOGGER.warn("API response of " + url + " not usable: " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            outcome = "error";
+            LOGGER.error("API call " + url + " failed: " + e.getMessage());
+            if (circuitBreaker.onFailure(failureThreshold, openMillis)) {
+                LOGGER.warn("opened circuit for " + domain);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            circuitBreaker.onSkipped();
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. a bug in the reader, if this was the trial call the domain must not stay blocked for good
+            circuitBreaker.onSkipped();
+            outcome = "error";
+            throw e;
+        } finally {
+            bulkhead.release();
+            Metrics metrics = Metrics.getInstance();
+            metrics.increment(Metrics.UPSTREAM_REQUESTS, "domain", domain, "outcome", outcome);
+            metrics.observeMillis(Metrics.UPSTREAM_REQUEST_DURATION, System.currentTimeMillis() - start, "domain", domain);
+        }
+    }
+
+    /**
+     * Call the endpoint once to see whether it works. Unlike {@link #getText(String)} there are no retries and no circuit breaker so that we
+     * measure the endpoint itself. At most maxBytes of the response are read.
+     */
+    public Probe probe(String url, Duration timeout, long maxBytes) throws InterruptedException {
+        String domain = UrlHelper.getDomain(url, false, false);
+        long start = System.currentTimeMillis();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(toUri(authenticate(url, domain == null ? "" : domain)))
+                    .timeout(timeout)
+                    .header("Accept", "application/json")
+                    .header("Accept-Encoding", "gzip, deflate")
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            long bytes = 0;
+            try (InputStream body = decode(response)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while (bytes < maxBytes && (read = body.read(buffer)) != -1) {
+                    bytes += read;
+                }
+            }
+            return new Probe(response.statusCode(), System.currentTimeMillis() - start, bytes, null);
+        } catch (IOException | IllegalArgumentException e) {
+            return new Probe(0, System.currentTimeMillis() - start, 0, e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param url The URL to call, including the authentication.
+     * @param logUrl The URL without the authentication for logging.
+     * @return What the reader made of the body or null if the API rejected the request.
+     * @throws InvalidResponseException If the reader could not use the response.
+     * @throws IOException If the API could not be reached or had a problem, also after retrying.
+     */
+    private <T> T getWithRetries(String url, String logUrl, ResponseReader<T> responseReader) throws IOException, InterruptedException {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(toUri(url))
+                    .timeout(requestTimeout)
+                    .header("Accept", "application/json")
+                    .header("Accept-Encoding", "gzip, deflate")
+                    .GET()
+                    .build();
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("invalid URL " + logUrl);
+            return null;
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            IOException failure;
+            try {
+                HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                int status = response.statusCode();
+                if (status >= 200 && status < 300) {
+                    try (InputStream body = decode(response)) {
+                        return responseReader.read(body);
+                    }
+                }
+                response.body().close();
+                // the API is overloaded or has a problem, it might work again in a moment. Other errors won't go away by asking again
+                if (status != 429 && status < 500) {
+                    LOGGER.warn("API call " + logUrl + " returned status " + status);
+                    return null;
+                }
+                failure = new IOException("status " + status);
+            } catch (InvalidResponseException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (attempt >= retries) {
+                throw failure;
+            }
+            retriedCalls.incrementAndGet();
+            LOGGER.warn("retrying API call " + logUrl + " after: " + failure.getMessage());
+            // full jitter so that retries of many clients don't hit the API at the same time
+            long backoff = retryBackoffMillis << attempt;
+            Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+        }
+    }
+
+    /**
+     * URLs filled out by the LLM often contain spaces, quotes or umlauts, those are encoded. Everything else, including existing escapes,
+     * stays as it is.
+     *
+     * @throws IllegalArgumentException If the URL is still not valid.
+     */
+    static URI toUri(String url) {
+        try {
+            return URI.create(url);
+        } catch (IllegalArgumentException e) {
+            // encode below
+        }
+        byte[] bytes = url.getBytes(StandardCharsets.UTF_8);
+        StringBuilder encoded = new StringBuilder(bytes.length + 16);
+        for (int i = 0; i < bytes.length; i++) {
+            int c = bytes[i] & 0xff;
+            boolean escape = c == '%' && i + 2 < bytes.length && isHexDigit(bytes[i + 1]) && isHexDigit(bytes[i + 2]);
+            if (escape || c > ' ' && c < 0x7f && c != '%' && "\"<>\\^`{|}".indexOf(c) < 0) {
+                encoded.append((char) c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16))).append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return URI.create(encoded.toString());
+    }
+
+    private static boolean isHexDigit(byte b) {
+        return Character.digit(b, 16) >= 0;
+    }
+
+    private String authenticate(String url, String domain) {
+        Pair<String, String> domainAuthentication = authentication.get(domain);
+        if (domainAuthentication == null) {
+            return url;
+        }
+        return url + (url.contains("?") ? "&" : "?") + domainAuthentication.getLeft() + "=" + UrlHelper.encodeParameter(domainAuthentication.getRight());
+    }
+
+    private static InputStream decode(HttpResponse<InputStream> response) throws IOException {
+        String contentEncoding = response.headers().firstValue("Content-Encoding").orElse("").trim().toLowerCase();
+        switch (contentEncoding) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(response.body());
+            case "deflate":
+                return new InflaterInputStream(response.body());
+            default:
+                return response.body();
+        }
+    }
+
+    public JsonObject getStatistics() {
+        JsonObject statistics = new JsonObject();
+        statistics.put("calls", calls.get());
+        statistics.put("failures", failures.get());
+        statistics.put("retries", retriedCalls.get());
+        statistics.put("rejected", rejectedCalls.get());
+        int openCircuits = 0;
+        for (CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            if (circuitBreaker.isOpen()) {
+                openCircuits++;
+            }
+        }
+        statistics.put("openCircuits", openCircuits);
+        return statistics;
+    }
+}
@@ -1,10 +1,17 @@
 package cc.opensearch;
 
+import org.apache.log4j.Logger;
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import ws.palladian.persistence.json.JsonObject;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class handles web socket messages.
@@ -15,24 +22,121 @@ import java.io.IOException;
 
 @org.eclipse.jetty.websocket.api.annotations.WebSocket
 public class WebSocket {
+    private static final Logger LOGGER = Logger.getLogger(WebSocket.class);
+
+    /** the search that is currently running for a session */
+    private static final Map<Session, SearchPipeline.SearchTask> RUNNING_SEARCHES = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger OPEN_SESSIONS = new AtomicInteger();
+
+    private static final AtomicLong SESSION_IDS = new AtomicLong();
+
+    /** session => its key for rate limiting */
+    private static final Map<Session, String> SESSION_KEYS = new ConcurrentHashMap<>();
+
+    public static int getOpenSessions() {
+        return OPEN_SESSIONS.get();
+    }
+
+    @OnWebSocketConnect
+    public void handleConnect(Session session) {
+        OPEN_SESSIONS.incrementAndGet();
+        SESSION_KEYS.put(session, AdmissionControl.getInstance().getSessionKey(SESSION_IDS.incrementAndGet()));
+    }
+
     @OnWebSocketMessage
-    public void handleTextMessage(Session session, String message) throws IOException {
-        JsonObject jsonResponse;
-        try {
-            jsonResponse = Searcher.getInstance().search(message, session);
-            if (jsonResponse == null) {
-                session.getRemote().sendString("Something went wrong");
+    public void handleTextMessage(Session session, String message) {
+        // clients of the versioned protocol send commands, old clients only send the query
+        String query = message;
+        JsonObject command = WebSocketProtocol.parseCommand(message);
+        if (command != null) {
+            String type = command.tryGetString("type");
+            if ("hello".equals(type)) {
+                WebSocketProtocol.hello(session, command);
                 return;
             }
-            String html = HtmlRenderer.getInstance().renderHtml(jsonResponse, session);
-            if (html == null) {
-                session.getRemote().sendString("Something went wrong");
+            query = command.tryGetString("query");
+            if (!"search".equals(type) || query == null) {
+                sendError(session, "error", "Unknown command");
+                return;
+            }
+        }
+
+        AdmissionControl admissionControl = AdmissionControl.getInstance();
+        String clientKey = admissionControl.getClientKey(session.getRemoteAddress().getAddress().getHostAddress(),
+                session.getUpgradeRequest().getHeader("X-Forwarded-For"));
+        String sessionKey = SESSION_KEYS.get(session);
+        if (admissionControl.tryAcquire(clientKey) > 0 || sessionKey != null && admissionControl.tryAcquire(sessionKey) > 0) {
+            sendError(session, "rate_limited", Api.RATE_LIMITED_MESSAGE);
+            return;
+        }
+
+        // a new query replaces the one that is still running in this session
+        SearchPipeline.SearchTask previousTask = RUNNING_SEARCHES.remove(session);
+        if (previousTask != null) {
+            previousTask.cancel();
+        }
+        WebSocketProtocol protocol = WebSocketProtocol.get(session);
+        if (protocol != null) {
+            protocol.startSearch(command != null ? command.tryGetJsonObject("templates") : null);
+        }
+
+        // the search runs in the pipeline, we don't block the Jetty thread
+        String searchQuery = query;
+        SearchPipeline.SearchTask task = SearchPipeline.getInstance().search(searchQuery, session);
+        RUNNING_SEARCHES.put(session, task);
+        task.getResult().whenComplete((html, throwable) -> {
+            RUNNING_SEARCHES.remove(session, task);
+            if (task.isCancelled() || !session.isOpen()) {
                 return;
             }
-            session.getRemote().sendString(html);
-        } catch (Exception e) {
-            e.printStackTrace();
-            session.getRemote().sendString("Something went wrong");
+            if (SearchPipeline.isOverloaded(throwable)) {
+                sendError(session, "overloaded", Api.OVERLOADED_MESSAGE);
+            } else if (throwable != null) {
+                LOGGER.error("search failed for query: " + searchQuery, throwable);
+                sendError(session, "error", "Something went wrong");
+            } else if (html == null) {
+                sendError(session, "unresolved", "Something went wrong");
+            } else {
+                if (protocol != null) {
+                    // the client binds the data itself, the template and the data are sent only once
+                    protocol.sendResult(task.getRendering());
+                } else {
+                    try {
+                        session.getRemote().sendString(html);
+                    } catch (IOException e) {
+                        LOGGER.warn("could not send search result", e);
+                    }
+                }
+            }
+        });
+    }
+
+    private static void sendError(Session session, String code, String message) {
+        WebSocketProtocol protocol = WebSocketProtocol.get(session);
+        if (protocol != null) {
+            protocol.sendError(code, message);
+            return;
+        }
+        try {
+            session.getRemote().sendString(message);
+        } catch (IOException e) {
+            LOGGER.warn("could not send " + code + " message", e);
+        }
+    }
+
+    @OnWebSocketClose
+    public void handleClose(Session session, int statusCode, String reason) {
+        OPEN_SESSIONS.decrementAndGet();
+        WebSocketProtocol.remove(session);
+        String sessionKey = SESSION_KEYS.remove(session);
+        if (sessionKey != null) {
+            AdmissionControl.getInstance().release(sessionKey);
+        }
+        // nobody is listening anymore, stop working on the search
+        SearchPipeline.SearchTask task = RUNNING_SEARCHES.remove(session);
+        if (task != null) {
+            task.cancel();
         }
     }
     //    @OnWebSocketMessage
@@ -0,0 +1,214 @@
+package cc.opensearch;
+
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The versioned websocket protocol. Clients that start with a hello command get typed frames instead of free-text messages and a page with
+ * the data baked in: the template is sent once (or not at all if the client has it cached already) and the data is sent once and bound by the
+ * client. Clients that don't say hello keep getting the old messages.
+ * <p>
+ * Commands: {"type":"hello","version":2,"binary":false} and {"type":"search","query":"...","templates":{"[template id]":"[hash]"}}.
+ * <p>
+ * Frames: hello, trace, progress, data, chunk, template, done and error, e.g. {"v":2,"type":"progress","message":"Using API: ..."}. In binary
+ * mode a frame is the JSON header, a newline and the payload (data, html) as raw UTF-8, so HTML doesn't have to be escaped.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class WebSocketProtocol {
+    private static final Logger LOGGER = Logger.getLogger(WebSocketProtocol.class);
+
+    public static final int VERSION = 2;
+
+    /** messages are queued without waiting for the client, a slow client must not hold up the search that sends them */
+    static final WriteCallback LOG_FAILURE = new WriteCallback() {
+        @Override
+        public void writeFailed(Throwable throwable) {
+            LOGGER.warn("could not send websocket message", throwable);
+        }
+
+        @Override
+        public void writeSuccess() {
+        }
+    };
+
+    /** we don't take more templates of a search command than this */
+    private static final int MAX_CLIENT_TEMPLATES = 1000;
+
+    /** the sessions that said hello */
+    private static final Map<Session, WebSocketProtocol> PROTOCOLS = new ConcurrentHashMap<>();
+
+    private final Session session;
+
+    /** whether the frames are sent as binary messages */
+    private final boolean binary;
+
+    /**
+     * template id => hash of the templates the client has according to its search command. We don't assume it kept a template we sent, its
+     * storage may be full.
+     */
+    private final Map<String, String> clientTemplates = new ConcurrentHashMap<>();
+
+    /** the data that was sent for the running search, it is not sent again with the result */
+    private String sentData;
+
+    private WebSocketProtocol(Session session, boolean binary) {
+        this.session = session;
+        this.binary = binary;
+    }
+
+    /**
+     * @return The protocol of the session or null if it speaks the old one.
+     */
+    public static WebSocketProtocol get(Session session) {
+        return session != null ? PROTOCOLS.get(session) : null;
+    }
+
+    /**
+     * @return The command or null if the message is a query of the old protocol.
+     */
+    public static JsonObject parseCommand(String message) {
+        if (!message.startsWith("{")) {
+            return null;
+        }
+        JsonObject command = JsonObject.tryParse(message);
+        if (command == null || command.tryGetString("type") == null) {
+            return null;
+        }
+        return command;
+    }
+
+    public static void hello(Session session, JsonObject command) {
+        WebSocketProtocol protocol = new WebSocketProtocol(session, Boolean.TRUE.equals(command.tryGetBoolean("binary")));
+        PROTOCOLS.put(session, protocol);
+        JsonObject frame = frame("hello");
+        frame.put("binary", protocol.binary);
+        // Jetty compresses the messages if the client offered permessage-deflate
+        frame.put("compressed", session.getUpgradeResponse().getExtensions().stream().anyMatch(extension -> "permessage-deflate".equals(extension.getName())));
+        protocol.send(frame, null, null, false);
+    }
+
+    public static void remove(Session session) {
+        PROTOCOLS.remove(session);
+    }
+
+    private static JsonObject frame(String type) {
+        JsonObject frame = new JsonObject();
+        frame.put("v", VERSION);
+        frame.put("type", type);
+        return frame;
+    }
+
+    /**
+     * A new search starts.
+     *
+     * @param templates Template id => hash of the templates the client has cached, may be null.
+     */
+    public synchronized void startSearch(JsonObject templates) {
+        sentData = null;
+        clientTemplates.clear();
+        if (templates == null) {
+            return;
+        }
+        for (String id : templates.keySet()) {
+            String hash = templates.tryGetString(id);
+            if (hash != null && clientTemplates.size() < MAX_CLIENT_TEMPLATES) {
+                clientTemplates.put(id, hash);
+            }
+        }
+    }
+
+    /**
+     * Send a message of the old protocol as a frame.
+     */
+    public synchronized void sendMessage(String message) {
+        if (message.startsWith(Progress.TRACE_ID_MESSAGE)) {
+            JsonObject frame = frame("trace");
+            frame.put("id", message.substring(Progress.TRACE_ID_MESSAGE.length()));
+            send(frame, null, null, false);
+        } else if (message.startsWith(HtmlRenderer.JSON_DATA_MESSAGE)) {
+            sendData(message.substring(HtmlRenderer.JSON_DATA_MESSAGE.length()));
+        } else if (message.startsWith(HtmlRenderer.HTML_CHUNK_MESSAGE)) {
+            send(frame("chunk"), "html", message.substring(HtmlRenderer.HTML_CHUNK_MESSAGE.length()), false);
+        } else {
+            JsonObject frame = frame("progress");
+            frame.put("message", message);
+            send(frame, null, null, false);
+        }
+    }
+
+    /**
+     * Send the result of the search: the template if the client doesn't have it, the data if it was not streamed already and the done frame.
+     */
+    public synchronized void sendResult(HtmlRenderer.Rendering rendering) {
+        String id = rendering.getTemplateId();
+        String hash = rendering.getTemplate().getHash();
+        JsonObject frame = frame("template");
+        frame.put("id", id);
+        frame.put("hash", hash);
+        if (hash.equals(clientTemplates.get(id))) {
+            frame.put("cached", true);
+            send(frame, null, null, false);
+        } else {
+            send(frame, "html", rendering.getTemplate().getHtml(), false);
+        }
+        sendData(rendering.getJson());
+        send(frame("done"), null, null, false);
+        sentData = null;
+    }
+
+    /**
+     * @param code Why the search failed: rate_limited, overloaded, unresolved or error.
+     */
+    public synchronized void sendError(String code, String message) {
+        JsonObject frame = frame("error");
+        frame.put("code", code);
+        frame.put("message", message);
+        send(frame, null, null, false);
+        sentData = null;
+    }
+
+    private void sendData(String json) {
+        if (json.equals(sentData)) {
+            return;
+        }
+        sentData = json;
+        send(frame("data"), "data", json, true);
+    }
+
+    /**
+     * @param payloadField The field of the payload, null if the frame has none.
+     * @param rawJson Whether the payload is JSON that goes into the frame as it is instead of as a string.
+     */
+    private void send(JsonObject frame, String payloadField, String payload, boolean rawJson) {
+        if (!session.isOpen()) {
+            return;
+        }
+        if (binary) {
+            if (payloadField != null) {
+                frame.put("payload", payloadField);
+            }
+            String message = payload != null ? frame + "\n" + payload : frame.toString();
+            session.getRemote().sendBytes(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), LOG_FAILURE);
+            return;
+        }
+        if (payloadField == null) {
+            session.getRemote().sendString(frame.toString(), LOG_FAILURE);
+        } else if (rawJson) {
+            // the JSON is not parsed and serialized again just to put it into the frame
+            String header = frame.toString();
+            session.getRemote().sendString(header.substring(0, header.length() - 1) + ",\"" + payloadField + "\":" + payload + "}", LOG_FAILURE);
+        } else {
+            frame.put(payloadField, payload);
+            session.getRemote().sendString(frame.toString(), LOG_FAILURE);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cc.opensearch;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class ApiRouterTest {
+    private static ApiRouter router;
+
+    @BeforeClass
+    public static void createRouter() {
+        JsonArray availableApis = new JsonArray();
+        availableApis.add(api("Get information about a city", "https://api.api-ninjas.com/v1/city?name={CITY_NAME}"));
+        availableApis.add(api("Search tv shows by their name", "http://api.tvmaze.com/search/shows?q={NAME_OF_SHOW}"));
+        availableApis.add(api("Weather forecast for the next days", "https://api.open-meteo.com/v1/forecast?latitude=52.52&longitude=13.41"));
+        availableApis.add(api("A random joke", "https://official-joke-api.appspot.com/random_joke"));
+        availableApis.add(api("Your public IP address", "https://api.ipify.org?format=json"));
+        availableApis.add(api("Popular baby names", "https://babynames.example.org/v1/babynames?gender={boy,girl,neutral}"));
+        router = new ApiRouter(availableApis, null, 0.1, 1.);
+    }
+
+    private static JsonObject api(String description, String url) {
+        JsonObject apiJson = new JsonObject();
+        apiJson.put("description", description);
+        apiJson.put("url", url);
+        return apiJson;
+    }
+
+    @Test
+    public void testFillWithOriginalToken() {
+        // the stems "pari" and "friend" are only for matching
+        assertEquals("https://api.api-ninjas.com/v1/city?name=paris", router.route("city paris"));
+        assertEquals("http://api.tvmaze.com/search/shows?q=friends", router.route("tv shows friends"));
+    }
+
+    @Test
+    public void testFillEnumeration() {
+        assertEquals("https://babynames.example.org/v1/babynames?gender=girl", router.route("baby names for girls"));
+        assertNull(router.route("baby names for cats"));
+    }
+
+    @Test
+    public void testTemplateWithoutPlaceholder() {
+        assertEquals("https://official-joke-api.appspot.com/random_joke", router.route("random joke"));
+        assertEquals("https://api.ipify.org?format=json", router.route("public ip address"));
+
+        // the query says more than the endpoint
+        assertNull(router.route("random joke cats"));
+    }
+
+    @Test
+    public void testTemplateWithLiteralValues() {
+        // the coordinates are an example, they are not tokyo and not wherever the user is
+        assertNull(router.route("weather forecast in tokyo"));
+        assertNull(router.route("weather forecast"));
+    }
+
+    @Test
+    public void testFill() {
+        ApiRouter.Endpoint city = new ApiRouter.Endpoint("https://example.org/city?name={CITY_NAME}", Set.of("city"), List.of("CITY_NAME"), 0, 100);
+        assertEquals("https://example.org/city?name=paris", ApiRouter.fill(city, List.of("paris")));
+        assertNull(ApiRouter.fill(city, List.of()));
+
+        ApiRouter.Endpoint year = new ApiRouter.Endpoint("https://example.org/predictions?year={YEAR}", Set.of("prediction"), List.of("YEAR"), 0, 100);
+        assertEquals("https://example.org/predictions?year=2024", ApiRouter.fill(year, List.of("groundhog", "2024")));
+        assertNull(ApiRouter.fill(year, List.of("groundhog")));
+
+        ApiRouter.Endpoint pokemon = new ApiRouter.Endpoint("https://example.org/pokemon/ditto/", Set.of("pokemon", "ditto"), List.of(), 0, 100);
+        assertEquals("https://example.org/pokemon/ditto/", ApiRouter.fill(pokemon, List.of()));
+        assertNull(ApiRouter.fill(pokemon, List.of("pikachu")));
+
+        ApiRouter.Endpoint genderize = new ApiRouter.Endpoint("https://example.org?name=mary", Set.of("gender"), List.of(), 0, 100);
+        assertNull(ApiRouter.fill(genderize, List.of()));
+    }
+}
@@ -0,0 +1,79 @@
+package cc.opensearch;
+
+import org.junit.Test;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class ImportEndpointsTest {
+    private static JsonObject api(String url) {
+        JsonObject apiJson = new JsonObject();
+        apiJson.put("url", url);
+        return apiJson;
+    }
+
+    private static JsonObject probe(String host, int status, boolean healthy, long latencyMillis) {
+        JsonObject probeJson = new JsonObject();
+        probeJson.put("host", host);
+        probeJson.put("status", status);
+        probeJson.put("healthy", healthy);
+        probeJson.put("latencyMillis", latencyMillis);
+        return probeJson;
+    }
+
+    @Test
+    public void testApplyHealth() {
+        JsonArray apis = new JsonArray();
+        apis.add(api("https://mostly-working.org/v1/a?q={QUERY}"));
+        apis.add(api("https://mostly-failing.org/v1/b"));
+        apis.add(api("https://not-probed.org/v1/c"));
+
+        List<JsonObject> probes = List.of(
+                probe("mostly-working.org", 200, true, 100),
+                probe("mostly-working.org", 200, true, 300),
+                probe("mostly-working.org", 200, true, 200),
+                probe("mostly-working.org", 500, false, 50),
+                probe("mostly-failing.org", 200, true, 100),
+                probe("mostly-failing.org", 0, false, 5000),
+                probe("mostly-failing.org", 404, false, 80));
+
+        assertEquals(2, ImportEndpoints.applyHealth(apis, probes));
+
+        JsonObject working = apis.tryGetJsonObject(0);
+        assertEquals(Boolean.TRUE, working.tryGetBoolean("healthy"));
+        // the median of the working endpoints only
+        assertEquals(200L, (long) working.tryGetLong("latency_millis"));
+
+        JsonObject failing = apis.tryGetJsonObject(1);
+        assertEquals(Boolean.FALSE, failing.tryGetBoolean("healthy"));
+        assertEquals(100L, (long) failing.tryGetLong("latency_millis"));
+
+        assertNull(apis.tryGetJsonObject(2).tryGetBoolean("healthy"));
+    }
+
+    @Test
+    public void testRejectedKeyDoesNotCount() {
+        JsonArray apis = new JsonArray();
+        apis.add(api("https://keyed.org/v1/a"));
+        apis.add(api("https://keyed-and-working.org/v1/b"));
+
+        List<JsonObject> probes = List.of(
+                probe("keyed.org", 401, false, 30),
+                probe("keyed.org", 403, false, 30),
+                probe("keyed-and-working.org", 403, false, 30),
+                probe("keyed-and-working.org", 200, true, 120));
+
+        // without the key we know nothing about the host, it keeps what it had
+        assertEquals(1, ImportEndpoints.applyHealth(apis, probes));
+        assertNull(apis.tryGetJsonObject(0).tryGetBoolean("healthy"));
+        assertEquals(Boolean.TRUE, apis.tryGetJsonObject(1).tryGetBoolean("healthy"));
+    }
+}
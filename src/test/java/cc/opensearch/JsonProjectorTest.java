@@ -0,0 +1,118 @@
+package cc.opensearch;
+
+import org.junit.Test;
+import ws.palladian.persistence.json.JsonArray;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class JsonProjectorTest {
+    private final JsonProjector projector = new JsonProjector(1024, 3, 5, 3);
+
+    private void assertInvalid(String json) throws IOException {
+        try {
+            projector.project(json);
+            fail("not rejected: " + json);
+        } catch (UpstreamClient.InvalidResponseException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testObject() throws IOException {
+        JsonObject projection = projector.project("{\"name\": \"Paris\", \"capital\": true, \"mayor\": null, \"area\": 105.4, \"nested\": {\"a\": false}}");
+        assertEquals("Paris", projection.get("name"));
+        assertEquals(Boolean.TRUE, projection.get("capital"));
+        assertNull(projection.get("mayor"));
+        assertEquals(105.4, projection.get("area"));
+        assertEquals(Boolean.FALSE, projection.tryGetJsonObject("nested").get("a"));
+    }
+
+    @Test
+    public void testArrayAtRoot() throws IOException {
+        JsonObject projection = projector.project(" [{\"id\": 1}, {\"id\": 2}] ");
+        JsonArray response = projection.tryGetJsonArray("response");
+        assertEquals(2, response.size());
+        assertEquals(2, response.tryGetJsonObject(1).get("id"));
+    }
+
+    @Test
+    public void testCutArray() throws IOException {
+        // the elements beyond the limit are read but not kept
+        JsonArray numbers = projector.project("{\"numbers\": [1, 2, 3, 4, {\"skipped\": 5}, \"seven\"]}").tryGetJsonArray("numbers");
+        assertEquals(3, numbers.size());
+        assertEquals(1, numbers.get(0));
+        assertEquals(3, numbers.get(2));
+    }
+
+    @Test
+    public void testCutString() throws IOException {
+        JsonObject projection = projector.project("{\"short\": \"abcde\", \"long\": \"abcdefgh\", \"long field name\": 1}");
+        assertEquals("abcde", projection.get("short"));
+        assertEquals("abcde…", projection.get("long"));
+        // field names are never cut
+        assertEquals(1, projection.get("long field name"));
+    }
+
+    @Test
+    public void testCutAtSurrogatePair() throws IOException {
+        // the emoji is two chars, the cut after 5 chars would split it
+        assertEquals("abcd…", projector.project("{\"text\": \"abcd\uD83D\uDE00xyz\"}").get("text"));
+        assertEquals("abc\uD83D\uDE00…", projector.project("{\"text\": \"abc\uD83D\uDE00xyz\"}").get("text"));
+    }
+
+    @Test
+    public void testEscapes() throws IOException {
+        JsonObject projection = projector.project("{\"a\": \"\\u00e9\\n\", \"b\": \"\\\"\\\\\\/\", \"c\": \"\\ud83d\\ude00\"}");
+        assertEquals("é\n", projection.get("a"));
+        assertEquals("\"\\/", projection.get("b"));
+        assertEquals("\uD83D\uDE00", projection.get("c"));
+        assertInvalid("{\"a\": \"\\u00zz\"}");
+        assertInvalid("{\"a\": \"\\x\"}");
+    }
+
+    @Test
+    public void testNumbers() throws IOException {
+        JsonObject projection = projector.project("{\"int\": -42, \"long\": 12345678901, \"big\": 123456789012345678901234567890, \"exp\": 1e3}");
+        assertEquals(-42, projection.get("int"));
+        assertEquals(12345678901L, projection.get("long"));
+        assertEquals(new BigDecimal("123456789012345678901234567890"), projection.get("big"));
+        assertEquals(1000.0, projection.get("exp"));
+        assertInvalid("{\"a\": 1-2}");
+    }
+
+    @Test
+    public void testTooDeep() throws IOException {
+        assertEquals(1, projector.project("{\"a\": {\"b\": {\"c\": 1}}}").tryGetJsonObject("a").tryGetJsonObject("b").get("c"));
+        assertInvalid("{\"a\": {\"b\": {\"c\": {\"d\": 1}}}}");
+        assertInvalid("[[[[1]]]]");
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        StringBuilder json = new StringBuilder("{\"text\": \"");
+        for (int i = 0; i < 2000; i++) {
+            json.append('a');
+        }
+        assertInvalid(json.append("\"}").toString());
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        assertInvalid("\"just a string\"");
+        assertInvalid("{\"a\": 1} {\"b\": 2}");
+        assertInvalid("{\"a\": 1} trailing");
+        assertInvalid("{\"a\": 1");
+        assertInvalid("{\"a\": tru}");
+        assertInvalid("{a: 1}");
+    }
+}
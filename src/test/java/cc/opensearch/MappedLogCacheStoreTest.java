@@ -0,0 +1,123 @@
+package cc.opensearch;
+
+import org.junit.Test;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class MappedLogCacheStoreTest {
+    private static final long HOUR = 3_600_000L;
+
+    private static JsonObject value(String text, long expires) {
+        JsonObject value = new JsonObject();
+        value.put("text", text);
+        value.put("expires", expires);
+        return value;
+    }
+
+    private static MappedLogCacheStore createStore(Path directory, long maxSizeBytes) {
+        // no scheduled compaction, the tests compact themselves
+        return new MappedLogCacheStore(directory.toString(), maxSizeBytes, 24 * 60);
+    }
+
+    @Test
+    public void testPutGetExpiry() throws IOException {
+        long now = System.currentTimeMillis();
+        try (MappedLogCacheStore store = createStore(Files.createTempDirectory("cache-store"), 1024 * 1024)) {
+            store.put("responses", "weather berlin", value("sunny", now + HOUR));
+            store.put("templates", "weather berlin", value("<div>", now + HOUR));
+            store.put("responses", "old news", value("yesterday", now - 1));
+
+            assertEquals("sunny", store.get("responses", "weather berlin").tryGetString("text"));
+            assertEquals("<div>", store.get("templates", "weather berlin").tryGetString("text"));
+            assertNull(store.get("responses", "old news"));
+            assertNull(store.get("responses", "weather paris"));
+        }
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        long now = System.currentTimeMillis();
+        try (MappedLogCacheStore store = createStore(Files.createTempDirectory("cache-store"), 1024 * 1024)) {
+            store.put("responses", "joke", value("first", now + HOUR));
+            store.put("responses", "joke", value("second", now + HOUR));
+            assertEquals("second", store.get("responses", "joke").tryGetString("text"));
+
+            // an expired overwrite hides the older value too
+            store.put("responses", "joke", value("third", now - 1));
+            assertNull(store.get("responses", "joke"));
+        }
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        long now = System.currentTimeMillis();
+        Path directory = Files.createTempDirectory("cache-store");
+        try (MappedLogCacheStore store = createStore(directory, 1024 * 1024)) {
+            for (int i = 0; i < 100; i++) {
+                store.put("responses", "query " + i, value("response " + i, now + HOUR));
+            }
+            store.put("responses", "query 7", value("new response 7", now + HOUR));
+        }
+        try (MappedLogCacheStore store = createStore(directory, 1024 * 1024)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i == 7 ? "new response 7" : "response " + i, store.get("responses", "query " + i).tryGetString("text"));
+            }
+        }
+    }
+
+    @Test
+    public void testCompactionWithConcurrentPuts() throws Exception {
+        long now = System.currentTimeMillis();
+        Path directory = Files.createTempDirectory("cache-store");
+        try (MappedLogCacheStore store = createStore(directory, 4 * 1024 * 1024)) {
+            for (int i = 0; i < 2000; i++) {
+                store.put("responses", "expired " + i, value("gone " + i, now - 1));
+                store.put("responses", "overwritten " + (i % 100), value("version " + i, now + HOUR));
+            }
+
+            // puts go on while the log is compacted, none of them may be lost
+            AtomicInteger written = new AtomicInteger();
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    store.put("responses", "concurrent " + i, value("value " + i, System.currentTimeMillis() + HOUR));
+                    written.incrementAndGet();
+                }
+            });
+            writer.start();
+            for (int i = 0; i < 5; i++) {
+                store.compact(0);
+            }
+            writer.join();
+            store.compact(0);
+
+            assertEquals(2000, written.get());
+            for (int i = 0; i < 2000; i++) {
+                assertNull(store.get("responses", "expired " + i));
+                JsonObject value = store.get("responses", "concurrent " + i);
+                assertNotNull("concurrent " + i, value);
+                assertEquals("value " + i, value.tryGetString("text"));
+            }
+            for (int i = 0; i < 100; i++) {
+                assertEquals("version " + (1900 + i), store.get("responses", "overwritten " + i).tryGetString("text"));
+            }
+        }
+
+        // the compacted log is what is found after a restart
+        try (MappedLogCacheStore store = createStore(directory, 4 * 1024 * 1024)) {
+            assertEquals("value 1999", store.get("responses", "concurrent 1999").tryGetString("text"));
+            assertNull(store.get("responses", "expired 0"));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package cc.opensearch;
+
+import org.junit.After;
+import org.junit.Test;
+import ws.palladian.persistence.json.JsonObject;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Two nodes on localhost that share their cache.
+ *
+ * @author David Urbansky
+ * @since 17.10.2026
+ **/
+public class PeerCacheStoreTest {
+    private static final String SECRET = "test-secret";
+
+    private final List<PeerCacheStore> stores = new ArrayList<>();
+
+    private static class MemoryCacheStore implements CacheStore {
+        private final Map<String, JsonObject> values = new ConcurrentHashMap<>();
+
+        @Override
+        public JsonObject get(String collection, String key) {
+            return values.get(collection + "\0" + key);
+        }
+
+        @Override
+        public void put(String collection, String key, JsonObject value) {
+            values.put(collection + "\0" + key, value);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @After
+    public void closeStores() throws IOException {
+        for (PeerCacheStore store : stores) {
+            store.close();
+        }
+        stores.clear();
+    }
+
+    private static String freePeer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return "127.0.0.1:" + socket.getLocalPort();
+        }
+    }
+
+    private PeerCacheStore createStore(CacheStore localStore, List<String> peers, String self, int idleTimeoutMillis) throws IOException {
+        PeerCacheStore store = new PeerCacheStore(localStore, peers, self, SECRET, 10, 1000, 30_000, idleTimeoutMillis);
+        stores.add(store);
+        return store;
+    }
+
+    private static JsonObject value(String text) {
+        JsonObject value = new JsonObject();
+        value.put("text", text);
+        value.put("expires", System.currentTimeMillis() + 3_600_000L);
+        return value;
+    }
+
+    /**
+     * @return A key of the collection that the peer owns.
+     */
+    private static String keyOwnedBy(PeerCacheStore store, String peer, String prefix) {
+        for (int i = 0; ; i++) {
+            if (store.getOwner("responses", prefix + i).equals(peer)) {
+                return prefix + i;
+            }
+        }
+    }
+
+    private static JsonObject waitFor(CacheStore store, String key) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            JsonObject value = store.get("responses", key);
+            if (value != null) {
+                return value;
+            }
+            Thread.sleep(20);
+        }
+        return null;
+    }
+
+    @Test
+    public void testGetAndPutThroughOwner() throws Exception {
+        String peerA = freePeer();
+        String peerB = freePeer();
+        List<String> peers = List.of(peerA, peerB);
+        MemoryCacheStore localA = new MemoryCacheStore();
+        MemoryCacheStore localB = new MemoryCacheStore();
+        PeerCacheStore storeA = createStore(localA, peers, peerA, 60_000);
+        createStore(localB, peers, peerB, 60_000);
+
+        // the value is sent to its owner
+        String putKey = keyOwnedBy(storeA, peerB, "put ");
+        storeA.put("responses", putKey, value("sunny"));
+        JsonObject replicated = waitFor(localB, putKey);
+        assertNotNull(replicated);
+        assertEquals("sunny", replicated.tryGetString("text"));
+
+        // a local miss asks the owner and keeps a copy
+        String getKey = keyOwnedBy(storeA, peerB, "get ");
+        localB.put("responses", getKey, value("rainy"));
+        assertEquals("rainy", storeA.get("responses", getKey).tryGetString("text"));
+        assertEquals("rainy", localA.get("responses", getKey).tryGetString("text"));
+
+        assertNull(storeA.get("responses", keyOwnedBy(storeA, peerB, "missing ")));
+    }
+
+    @Test
+    public void testIdleReconnect() throws Exception {
+        String peerA = freePeer();
+        String peerB = freePeer();
+        List<String> peers = List.of(peerA, peerB);
+        MemoryCacheStore localB = new MemoryCacheStore();
+        PeerCacheStore storeA = createStore(new MemoryCacheStore(), peers, peerA, 200);
+        createStore(localB, peers, peerB, 200);
+
+        String firstKey = keyOwnedBy(storeA, peerB, "first ");
+        localB.put("responses", firstKey, value("first"));
+        assertNotNull(storeA.get("responses", firstKey));
+
+        // B closes the idle connection, A must neither lose the next values nor take B for down
+        Thread.sleep(500);
+        String putKey = keyOwnedBy(storeA, peerB, "put ");
+        storeA.put("responses", putKey, value("after idle"));
+        JsonObject replicated = waitFor(localB, putKey);
+        assertNotNull(replicated);
+        assertEquals("after idle", replicated.tryGetString("text"));
+
+        Thread.sleep(500);
+        String secondKey = keyOwnedBy(storeA, peerB, "second ");
+        localB.put("responses", secondKey, value("second"));
+        assertEquals("second", storeA.get("responses", secondKey).tryGetString("text"));
+    }
+
+    @Test
+    public void testRestartedPeer() throws Exception {
+        String peerA = freePeer();
+        String peerB = freePeer();
+        List<String> peers = List.of(peerA, peerB);
+        PeerCacheStore storeA = createStore(new MemoryCacheStore(), peers, peerA, 60_000);
+        PeerCacheStore storeB = createStore(new MemoryCacheStore(), peers, peerB, 60_000);
+
+        String firstKey = keyOwnedBy(storeA, peerB, "first ");
+        assertNull(storeA.get("responses", firstKey));
+
+        // the pooled connection of A is dead after the restart, A reconnects instead of taking B for down
+        storeB.close();
+        stores.remove(storeB);
+        MemoryCacheStore restartedLocalB = new MemoryCacheStore();
+        createStore(restartedLocalB, peers, peerB, 60_000);
+        String secondKey = keyOwnedBy(storeA, peerB, "second ");
+        restartedLocalB.put("responses", secondKey, value("restarted"));
+        assertEquals("restarted", storeA.get("responses", secondKey).tryGetString("text"));
+    }
+}